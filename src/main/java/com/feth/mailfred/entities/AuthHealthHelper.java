@@ -0,0 +1,119 @@
+package com.feth.mailfred.entities;
+
+import com.feth.mailfred.util.Utils;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of users who revoked our access, so we don't build a Gmail client and
+ * do a failing token refresh for every single one of their mails.
+ * <p/>
+ * The Datastore holds an {@link EntityConstants.AuthHealth} entity for every revoked user,
+ * memcache holds the state of both revoked and healthy users.
+ */
+public class AuthHealthHelper {
+
+    private static final Logger log = Logger.getLogger(AuthHealthHelper.class.getName());
+
+    private static final String MEMCACHE_NAMESPACE = "authHealth";
+    /**
+     * A healthy user might revoke access at any time - we'd notice anyway, so this only bounds the cache size
+     */
+    private static final Expiration HEALTHY_EXPIRATION = Expiration.byDeltaSeconds(6 * 60 * 60);
+
+    private static MemcacheService cache() {
+        return MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+    }
+
+    private static Key getKey(final String userId) {
+        return KeyFactory.createKey(EntityConstants.AuthHealth.NAME, userId);
+    }
+
+    /**
+     * @param userId the user to check
+     * @return whether the given user revoked our access and has not authorized us again since
+     */
+    public static boolean isRevoked(final String userId) {
+        final Boolean cached = (Boolean) cache().get(userId);
+        if (cached != null) {
+            return cached;
+        }
+
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        boolean revoked;
+        try {
+            ds.get(getKey(userId));
+            revoked = true;
+        } catch (EntityNotFoundException e) {
+            revoked = false;
+        }
+        cache().put(userId, revoked, revoked ? null : HEALTHY_EXPIRATION);
+        return revoked;
+    }
+
+    /**
+     * Marks the user as revoked, parks the pending mails of the user until {@link #clear(String)} and deletes the
+     * stored credential - otherwise /setup would happily accept the dead refresh token instead of asking the user
+     * again, and the user would never get out of this state
+     *
+     * @param cause the failure which tells us that the access was revoked, see {@link #isAuthFailure(Throwable)}
+     */
+    public static void markRevoked(final String userId, final Exception cause) {
+        final String reason = cause.getMessage();
+        log.warning(String.format("Access of user %s is not valid anymore: %s", userId, reason));
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        final Entity authHealth = new Entity(getKey(userId));
+        authHealth.setProperty(EntityConstants.AuthHealth.Property.REVOKED_AT, new Date());
+        authHealth.setUnindexedProperty(EntityConstants.AuthHealth.Property.REASON, reason);
+        ds.put(authHealth);
+        cache().put(userId, true);
+        EntityHelper.parkScheduledMails(ds, userId);
+        try {
+            Utils.newFlow(userId).getCredentialDataStore().delete(userId);
+        } catch (IOException e) {
+            log.severe(e.getMessage());
+        }
+    }
+
+    /**
+     * To be called when the user authorized us (again) - the parked mails of the user become due again
+     */
+    public static void clear(final String userId) {
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        ds.delete(getKey(userId));
+        cache().put(userId, false, HEALTHY_EXPIRATION);
+        EntityHelper.unparkScheduledMails(ds, userId);
+    }
+
+    /**
+     * Whether the given exception tells us that the access of a user was revoked for good, i.e. the token endpoint
+     * rejected the refresh token. A rejected access token is not enough - the client refreshes it and retries, so a
+     * 401 which makes it through might just be a temporary problem.
+     *
+     * @param e an exception thrown while talking to the Gmail API
+     * @return whether the user has to authorize us again
+     */
+    public static boolean isAuthFailure(final Throwable e) {
+        return isRefreshTokenRejected(e);
+    }
+
+    private static boolean isRefreshTokenRejected(final Throwable e) {
+        if (!(e instanceof TokenResponseException)) {
+            return false;
+        }
+        final TokenResponseException tre = (TokenResponseException) e;
+        return tre.getDetails() != null && "invalid_grant".equals(tre.getDetails().getError());
+    }
+}
@@ -0,0 +1,117 @@
+package com.feth.mailfred.entities;
+
+import com.feth.mailfred.exceptions.StoringFailedException;
+import com.feth.mailfred.scheduler.Scheduler;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the scheduled mails in the Datastore (see {@link EntityHelper}) and keeps the
+ * {@link PendingSchedulesCache} and the statistics up to date. The auth health of the users is kept
+ * by {@link AuthHealthHelper}.
+ * <p/>
+ * The statistics of all threads using the store are coalesced until {@link #flushStatistics()}.
+ */
+public class DatastoreScheduleStore implements ScheduleStore {
+
+    private static final Function<Entity, String> TO_MAIL_ID = new Function<Entity, String>() {
+        @Override
+        public String apply(final Entity scheduledMail) {
+            return (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID);
+        }
+    };
+
+    private final DatastoreService ds;
+    private final AsyncDatastoreService asyncDs;
+    private StatusCounters statusCounters = new StatusCounters();
+
+    public DatastoreScheduleStore(final DatastoreService ds, final AsyncDatastoreService asyncDs) {
+        this.ds = ds;
+        this.asyncDs = asyncDs;
+    }
+
+    @Override
+    public void schedule(final Date now, final String userId, final Scheduler scheduler, final String mailId, final Date scheduleAt, final ProcessingOptionSet processingOptions) throws IOException, StoringFailedException {
+        EntityHelper.scheduleMail(ds, now, userId, scheduler, mailId, scheduleAt, processingOptions);
+    }
+
+    @Override
+    public Map<String, Boolean> cancel(final Date now, final String userId, final Collection<String> mailIds) {
+        return EntityHelper.cancelScheduledMails(ds, now, userId, mailIds);
+    }
+
+    @Override
+    public Map<String, Boolean> reschedule(final Date now, final String userId, final Collection<String> mailIds, final Date scheduleAt) {
+        return EntityHelper.rescheduleMails(ds, now, userId, mailIds, scheduleAt);
+    }
+
+    @Override
+    public Iterable<Entity> findDue(final Date dueBefore) {
+        return EntityHelper.getToBeProcessedScheduledMails(ds, dueBefore);
+    }
+
+    @Override
+    public Iterator<String> findPendingForUser(final String userId) {
+        return Iterators.transform(
+                EntityHelper.startFetchingToBeProcessedMailIdsForUser(asyncDs, userId),
+                TO_MAIL_ID
+        );
+    }
+
+    @Override
+    public List<PendingSchedulesCache.PendingSchedule> findPendingSchedules(final String userId) {
+        return PendingSchedulesCache.get(ds, userId);
+    }
+
+    @Override
+    public Entity claim(final Key scheduledMailKey, final String claimant, final Date now, final Date claimedUntil) {
+        return EntityHelper.claimScheduledMail(ds, scheduledMailKey, claimant, now, claimedUntil);
+    }
+
+    @Override
+    public void recordResult(final Entity scheduledMail, final String status, final Date processedAt) {
+        EntityHelper.markProcessed(scheduledMail, status, processedAt);
+        ds.put(scheduledMail);
+        final String userId = (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.USER_ID);
+        PendingSchedulesCache.onRemoved(userId, (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID));
+        synchronized (this) {
+            statusCounters.increment(processedAt, status, userId);
+        }
+    }
+
+    @Override
+    public void flushStatistics() {
+        final StatusCounters toBeFlushed;
+        synchronized (this) {
+            toBeFlushed = statusCounters;
+            statusCounters = new StatusCounters();
+        }
+        toBeFlushed.flush();
+    }
+
+    @Override
+    public boolean isRevoked(final String userId) {
+        return AuthHealthHelper.isRevoked(userId);
+    }
+
+    @Override
+    public void markRevoked(final String userId, final Exception cause) {
+        AuthHealthHelper.markRevoked(userId, cause);
+    }
+
+    @Override
+    public void clearRevoked(final String userId) {
+        AuthHealthHelper.clear(userId);
+    }
+}
@@ -7,6 +7,12 @@ public abstract class EntityConstants {
 
         public static final String NAME = "ScheduledMail";
 
+        /**
+         * 1: processing options stored as a list of option keys (entities without a schema version)
+         * 2: processing options stored as a bit set, see {@link com.feth.mailfred.entities.ProcessingOptionSet}
+         */
+        public static final long CURRENT_SCHEMA_VERSION = 2;
+
         public static abstract class Property {
 
             public static final String USER_ID = "userId";
@@ -17,6 +23,15 @@ public abstract class EntityConstants {
             public static final String PROCESSED_AT = "processedAt";
             public static final String HAS_BEEN_PROCESSED = "hasBeenProcessed";
             public static final String PROCESS_STATUS = "processStatus";
+            public static final String SCHEMA_VERSION = "schemaVersion";
+            /**
+             * Who is processing the mail right now, see {@link com.feth.mailfred.entities.ScheduleStore#claim}
+             */
+            public static final String CLAIMED_BY = "claimedBy";
+            /**
+             * When the claim expires, so the mail gets processed again if its processor died
+             */
+            public static final String CLAIMED_UNTIL = "claimedUntil";
 
             public static abstract class ProcessingOptions {
 
@@ -42,8 +57,64 @@ public abstract class EntityConstants {
                 public static final String OUTBOX_LABEL_REMOVED = "labelRemoved";
                 public static final String PROCESSED_CORRECTLY = "ok";
                 public static final String ERROR = "error";
+                /**
+                 * Not a final status: the mail is still pending (hasBeenProcessed is false), but it is left out of
+                 * the due queries as long as the user has revoked our access, see {@link com.feth.mailfred.entities.AuthHealthHelper}
+                 */
+                public static final String PARKED = "parked";
+
+                public static final String[] ALL_PROCESS_STATUSES = {
+                        ANSWERED,
+                        NOT_FOUND,
+                        CANCELED,
+                        OUTBOX_LABEL_REMOVED,
+                        PROCESSED_CORRECTLY,
+                        ERROR
+                };
             }
         }
     }
 
+    public static abstract class AuthHealth {
+
+        /**
+         * The key name of these entities is the user ID
+         */
+        public static final String NAME = "AuthHealth";
+
+        public static abstract class Property {
+
+            public static final String REVOKED_AT = "revokedAt";
+            public static final String REASON = "reason";
+        }
+    }
+
+    public static abstract class WheelLease {
+
+        /**
+         * There is a single lease, it makes sure only one dispatcher fires due mails
+         */
+        public static final String NAME = "WheelLease";
+
+        public static abstract class Property {
+
+            public static final String OWNER = "owner";
+            public static final String EXPIRES_AT = "expiresAt";
+        }
+    }
+
+    public static abstract class StatusCounterShard {
+
+        /**
+         * The key name is built from the day, the process status, the user (if any) and the shard number,
+         * see {@link com.feth.mailfred.entities.StatusCounters}
+         */
+        public static final String NAME = "StatusCounterShard";
+
+        public static abstract class Property {
+
+            public static final String COUNT = "count";
+        }
+    }
+
 }
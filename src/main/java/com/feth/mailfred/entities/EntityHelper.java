@@ -2,20 +2,54 @@ package com.feth.mailfred.entities;
 
 import com.feth.mailfred.exceptions.StoringFailedException;
 import com.feth.mailfred.scheduler.Scheduler;
+import com.feth.mailfred.scheduler.WheelDispatcher;
 import com.google.appengine.api.datastore.*;
+import com.google.common.collect.Lists;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
 
 public class EntityHelper {
+
+    private static final Logger log = Logger.getLogger(EntityHelper.class.getName());
+
     private static final Query.Filter UNPROCESSED_SCHEDULED_MAIL_FILTER = new Query.FilterPredicate(
             EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED,
             Query.FilterOperator.EQUAL,
             false
     );
+    /**
+     * Pending mails have no process status - a parked mail of a user who revoked our access has one
+     */
+    private static final Query.Filter NOT_PARKED_SCHEDULED_MAIL_FILTER = new Query.FilterPredicate(
+            EntityConstants.ScheduledMail.Property.PROCESS_STATUS,
+            Query.FilterOperator.EQUAL,
+            null
+    );
+    private static final int MAIL_ID_CHUNK_SIZE = 1000;
+    /**
+     * A cross group transaction may not span more than 5 entity groups - every scheduled mail is an entity group of its own
+     */
+    public static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 5;
 
-    public static Iterable<Entity> getToBeProcessedScheduledMailsForUser(final DatastoreService ds, final String userId) {
+    /**
+     * Starts an asynchronous projection query for the mail IDs of all pending schedules of a user.
+     * The first chunk is fetched in the background, so the caller can do other work in the meantime
+     * and collect the IDs later.
+     */
+    public static Iterator<Entity> startFetchingToBeProcessedMailIdsForUser(final AsyncDatastoreService ds, final String userId) {
         final Query.Filter userIdFilter = getUserIdFilter(userId);
 
         final Query.Filter currentUserButUnprocessedFilter =
@@ -25,10 +59,12 @@ public class EntityHelper {
                 );
 
         final Query q = new Query(EntityConstants.ScheduledMail.NAME)
-                .setFilter(currentUserButUnprocessedFilter);
+                .setFilter(currentUserButUnprocessedFilter)
+                .addProjection(new PropertyProjection(EntityConstants.ScheduledMail.Property.MAIL_ID, String.class));
 
-        final PreparedQuery pq = ds.prepare(q);
-        return pq.asList(FetchOptions.Builder.withDefaults());
+        return ds.prepare(q).asIterator(FetchOptions.Builder
+                .withChunkSize(MAIL_ID_CHUNK_SIZE)
+                .prefetchSize(MAIL_ID_CHUNK_SIZE));
     }
 
     public static Iterable<Entity> getToBeProcessedScheduledMails(DatastoreService ds, Date processingRunStart) {
@@ -38,32 +74,174 @@ public class EntityHelper {
                 processingRunStart
         );
 
+        // parked mails would otherwise sit at the head of every run
         final Query.Filter scheduledForNowOrThePastAndUnprocessedFilter = Query.CompositeFilterOperator.and(
                 scheduledForNowOrThePastFilter,
-                UNPROCESSED_SCHEDULED_MAIL_FILTER
+                UNPROCESSED_SCHEDULED_MAIL_FILTER,
+                NOT_PARKED_SCHEDULED_MAIL_FILTER
         );
 
-        final Query q = new Query(EntityConstants.ScheduledMail.NAME).setFilter(scheduledForNowOrThePastAndUnprocessedFilter);
+        // oldest first, so a mail that had to be deferred in an earlier run is at the head of its user's queue
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME)
+                .setFilter(scheduledForNowOrThePastAndUnprocessedFilter)
+                .addSort(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR);
         final PreparedQuery pq = ds.prepare(q);
         return pq.asIterable();
     }
 
-    public static void scheduleMail(Date now, String userId, Scheduler scheduler, String mailId, Date scheduleAt, List<String> processingOptions) throws IOException, StoringFailedException {
-        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
-        final boolean archive = processingOptions.contains(EntityConstants.ScheduledMail.Property.ProcessingOptions.ARCHIVE_AFTER_SCHEDULING);
+    /**
+     * @return the filter for pending mails which are not parked, for other queries of due mails
+     */
+    public static Query.Filter getDueFilter() {
+        return Query.CompositeFilterOperator.and(UNPROCESSED_SCHEDULED_MAIL_FILTER, NOT_PARKED_SCHEDULED_MAIL_FILTER);
+    }
+
+    /**
+     * Takes the pending mails of a user out of the due queries
+     *
+     * @return the number of parked mails
+     */
+    public static int parkScheduledMails(final DatastoreService ds, final String userId) {
+        return setParked(ds, userId, null, EntityConstants.ScheduledMail.Property.ProcessStatus.PARKED);
+    }
+
+    /**
+     * Brings the parked mails of a user back into the due queries
+     *
+     * @return the number of unparked mails
+     */
+    public static int unparkScheduledMails(final DatastoreService ds, final String userId) {
+        return setParked(ds, userId, EntityConstants.ScheduledMail.Property.ProcessStatus.PARKED, null);
+    }
+
+    /**
+     * Changes the process status of the pending mails of a user. The entities are re-read in a transaction,
+     * so a mail processed or cancelled in the meantime is left alone.
+     */
+    private static int setParked(final DatastoreService ds, final String userId, final String fromStatus, final String toStatus) {
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME)
+                .setFilter(Query.CompositeFilterOperator.and(
+                        getUserIdFilter(userId),
+                        UNPROCESSED_SCHEDULED_MAIL_FILTER,
+                        new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, Query.FilterOperator.EQUAL, fromStatus)
+                ))
+                .setKeysOnly();
+        final List<Key> keys = new ArrayList<Key>();
+        for (final Entity key : ds.prepare(q).asIterable(FetchOptions.Builder.withChunkSize(MAIL_ID_CHUNK_SIZE))) {
+            keys.add(key.getKey());
+        }
+
+        int changed = 0;
+        for (final List<Key> chunk : Lists.partition(keys, MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+            final Transaction txn = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+            try {
+                final List<Entity> toBePut = new ArrayList<Entity>(chunk.size());
+                for (final Entity scheduledMail : ds.get(txn, chunk).values()) {
+                    final Object status = scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS);
+                    if (Boolean.TRUE.equals(scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED))
+                            || (fromStatus == null ? status != null : !fromStatus.equals(status))) {
+                        continue;
+                    }
+                    scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, toStatus);
+                    toBePut.add(scheduledMail);
+                }
+                ds.put(txn, toBePut);
+                txn.commit();
+                changed += toBePut.size();
+            } catch (final RuntimeException e) {
+                // the cron run skips the mails of revoked users anyway, clear() tries again on the next authorization
+                log.warning(String.format("Could not change %d mails of user %s to status %s: %s", chunk.size(), userId, toStatus, e.getMessage()));
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Claims a scheduled mail for processing. The mail is re-read in a transaction, so of two processors
+     * racing for the same mail (e.g. the dispatcher and the cron run) only one gets it.
+     *
+     * @return the current state of the claimed mail, null if it is not pending anymore or somebody else claimed it
+     */
+    public static Entity claimScheduledMail(final DatastoreService ds, final Key key, final String claimant, final Date now, final Date claimedUntil) {
+        final Transaction txn = ds.beginTransaction();
+        try {
+            final Entity scheduledMail = ds.get(txn, key);
+            if (!isClaimable(scheduledMail, now)) {
+                return null;
+            }
+            markClaimed(scheduledMail, claimant, claimedUntil);
+            ds.put(txn, scheduledMail);
+            txn.commit();
+            return scheduledMail;
+        } catch (EntityNotFoundException e) {
+            return null;
+        } catch (ConcurrentModificationException e) {
+            // somebody else wrote the mail in the meantime
+            return null;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /**
+     * @return whether the mail is pending, not parked and not claimed by a processor which might still be working on it
+     */
+    static boolean isClaimable(final Entity scheduledMail, final Date now) {
+        if (Boolean.TRUE.equals(scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED))
+                || scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS) != null) {
+            return false;
+        }
+        final Date claimedUntil = (Date) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.CLAIMED_UNTIL);
+        return claimedUntil == null || !claimedUntil.after(now);
+    }
+
+    static void markClaimed(final Entity scheduledMail, final String claimant, final Date claimedUntil) {
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.CLAIMED_BY, claimant);
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.CLAIMED_UNTIL, claimedUntil);
+    }
+
+    /**
+     * Sets the outcome of processing, the claim is not needed anymore
+     */
+    static void markProcessed(final Entity scheduledMail, final String status, final Date processedAt) {
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, status);
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, true);
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESSED_AT, processedAt);
+        scheduledMail.removeProperty(EntityConstants.ScheduledMail.Property.CLAIMED_BY);
+        scheduledMail.removeProperty(EntityConstants.ScheduledMail.Property.CLAIMED_UNTIL);
+    }
+
+    public static void scheduleMail(DatastoreService ds, Date now, String userId, Scheduler scheduler, String mailId, Date scheduleAt, ProcessingOptionSet processingOptions) throws IOException, StoringFailedException {
+        final boolean archive = processingOptions.isArchiveAfterScheduling();
         final List<Entity> unprocessedSameScheduledMails = getUnprocessedScheduledMailsFromSameUserWithSameMailId(userId, mailId, ds);
         final Entity scheduledMail = createNewScheduledMailEntity(userId, mailId, scheduleAt, processingOptions, now);
 
+        final StatusCounters statusCounters = new StatusCounters();
+
         final TransactionOptions options = TransactionOptions.Builder.withXG(true);
         final Transaction txn = ds.beginTransaction(options);
 
         try {
-            markAllPreviouslyScheduledMailsAsCancelled(unprocessedSameScheduledMails, now);
+            markAllPreviouslyScheduledMailsAsCancelled(unprocessedSameScheduledMails, now, statusCounters);
+            final List<Key> cancelledKeys = new ArrayList<Key>(unprocessedSameScheduledMails.size());
+            for (final Entity cancelled : unprocessedSameScheduledMails) {
+                cancelledKeys.add(cancelled.getKey());
+            }
             unprocessedSameScheduledMails.add(scheduledMail);
             ds.put(unprocessedSameScheduledMails);
+            WheelDispatcher.notify(txn, Collections.singletonMap(scheduledMail.getKey(), scheduleAt), cancelledKeys);
 
             scheduler.schedule(mailId, archive);
             txn.commit();
+            // only count the cancellations once they really happened
+            statusCounters.flush();
+            PendingSchedulesCache.onScheduled(userId, mailId, scheduleAt.getTime(), processingOptions);
         } catch (IOException e) {
             throw new StoringFailedException();
         } finally {
@@ -73,7 +251,176 @@ public class EntityHelper {
         }
     }
 
-    private static Entity createNewScheduledMailEntity(String userId, String mailId, Date scheduledFor, List<String> processingOptions, Date scheduledAt) {
+    /**
+     * Cancels the pending schedules of the given mails
+     *
+     * @return per mail ID whether the schedule was cancelled (true) or storing failed (false),
+     * mails without a pending schedule are missing
+     */
+    public static Map<String, Boolean> cancelScheduledMails(final DatastoreService ds, final Date now, final String userId, final Collection<String> mailIds) {
+        return replaceScheduledMails(ds, now, userId, mailIds, null);
+    }
+
+    /**
+     * Moves the pending schedules of the given mails to a new due time, keeping their processing options
+     *
+     * @return per mail ID whether the schedule was moved (true) or storing failed (false),
+     * mails without a pending schedule are missing
+     */
+    public static Map<String, Boolean> rescheduleMails(final DatastoreService ds, final Date now, final String userId, final Collection<String> mailIds, final Date scheduleAt) {
+        return replaceScheduledMails(ds, now, userId, mailIds, scheduleAt);
+    }
+
+    /**
+     * A part of the pending schedules of a mail, small enough for one transaction
+     */
+    private static class Replacement {
+        private final String mailId;
+        private final List<Key> keys;
+        /**
+         * Whether this is the last part of the mail, which adds the new schedule and makes it count as replaced
+         */
+        private final boolean last;
+
+        private Replacement(final String mailId, final List<Key> keys, final boolean last) {
+            this.mailId = mailId;
+            this.keys = keys;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Marks the pending schedules as cancelled, just like a new schedule of the same mail does,
+     * and adds new schedules if a due time is given. The mails are handled in chunks, one cross group transaction each,
+     * which touch at most {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION} schedules, old and new ones.
+     */
+    private static Map<String, Boolean> replaceScheduledMails(final DatastoreService ds, final Date now, final String userId, final Collection<String> mailIds, final Date scheduleAt) {
+        final Map<String, List<Key>> pendingKeys = getUnprocessedScheduledMailKeysFromSameUserWithMailIds(ds, userId, mailIds);
+        final Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+        // mails with too many pending schedules for one transaction, which got a part of them cancelled already
+        final Map<String, ProcessingOptionSet> partlyReplaced = new HashMap<String, ProcessingOptionSet>();
+        final Set<String> failed = new HashSet<String>();
+
+        for (final List<Replacement> chunk : partitionReplacements(pendingKeys, scheduleAt != null)) {
+            final List<Key> keys = new ArrayList<Key>();
+            for (final Replacement part : chunk) {
+                keys.addAll(part.keys);
+            }
+
+            final StatusCounters statusCounters = new StatusCounters();
+            final Map<String, ProcessingOptionSet> changed = new LinkedHashMap<String, ProcessingOptionSet>();
+            final Map<String, ProcessingOptionSet> changedPartly = new HashMap<String, ProcessingOptionSet>();
+            final Transaction txn = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+            try {
+                final Map<Key, Entity> current = ds.get(txn, keys);
+                final List<Entity> toBePut = new ArrayList<Entity>();
+                final List<Key> cancelledKeys = new ArrayList<Key>();
+                final List<Entity> newScheduledMails = new ArrayList<Entity>();
+                for (final Replacement part : chunk) {
+                    if (failed.contains(part.mailId)) {
+                        continue;
+                    }
+                    final List<Entity> stillUnprocessed = new ArrayList<Entity>();
+                    for (final Key key : part.keys) {
+                        final Entity scheduledMail = current.get(key);
+                        if (scheduledMail != null && !Boolean.TRUE.equals(scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED))) {
+                            stillUnprocessed.add(scheduledMail);
+                            cancelledKeys.add(key);
+                        }
+                    }
+                    final ProcessingOptionSet processingOptions = stillUnprocessed.isEmpty()
+                            ? partlyReplaced.get(part.mailId)
+                            : getProcessingOptions(stillUnprocessed.get(0));
+                    if (processingOptions == null) {
+                        // processed in the meantime
+                        continue;
+                    }
+                    markAllPreviouslyScheduledMailsAsCancelled(stillUnprocessed, now, statusCounters);
+                    toBePut.addAll(stillUnprocessed);
+                    if (!part.last) {
+                        changedPartly.put(part.mailId, processingOptions);
+                        continue;
+                    }
+                    if (scheduleAt != null) {
+                        newScheduledMails.add(createNewScheduledMailEntity(userId, part.mailId, scheduleAt, processingOptions, now));
+                    }
+                    changed.put(part.mailId, processingOptions);
+                }
+                toBePut.addAll(newScheduledMails);
+                ds.put(txn, toBePut);
+
+                final Map<Key, Date> scheduledKeys = new LinkedHashMap<Key, Date>();
+                for (final Entity scheduledMail : newScheduledMails) {
+                    scheduledKeys.put(scheduledMail.getKey(), scheduleAt);
+                }
+                WheelDispatcher.notify(txn, scheduledKeys, cancelledKeys);
+                txn.commit();
+            } catch (final RuntimeException e) {
+                // concurrent modification or Datastore failure, only the mails of this chunk are affected
+                for (final Replacement part : chunk) {
+                    results.put(part.mailId, false);
+                    failed.add(part.mailId);
+                }
+                continue;
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+
+            partlyReplaced.putAll(changedPartly);
+            statusCounters.flush();
+            for (final Map.Entry<String, ProcessingOptionSet> mail : changed.entrySet()) {
+                results.put(mail.getKey(), true);
+                if (scheduleAt != null) {
+                    PendingSchedulesCache.onScheduled(userId, mail.getKey(), scheduleAt.getTime(), mail.getValue());
+                } else {
+                    PendingSchedulesCache.onRemoved(userId, mail.getKey());
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Packs the mails into chunks which touch at most {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION} schedules.
+     * A mail usually has a single pending schedule, if it has more than fit into one transaction together with
+     * its new schedule, the surplus is cancelled in transactions of their own first.
+     *
+     * @param withNewSchedule whether every mail gets a new schedule, which touches another entity group
+     */
+    private static List<List<Replacement>> partitionReplacements(final Map<String, List<Key>> pendingKeys, final boolean withNewSchedule) {
+        final int newKeys = withNewSchedule ? 1 : 0;
+        final List<List<Replacement>> chunks = new ArrayList<List<Replacement>>();
+        List<Replacement> chunk = new ArrayList<Replacement>();
+        int touched = 0;
+        for (final Map.Entry<String, List<Key>> mail : pendingKeys.entrySet()) {
+            final List<Key> keys = mail.getValue();
+            final int lastPartSize = Math.min(keys.size(), MAX_ENTITY_GROUPS_PER_TRANSACTION - newKeys);
+            final List<Replacement> parts = new ArrayList<Replacement>();
+            for (final List<Key> surplus : Lists.partition(keys.subList(0, keys.size() - lastPartSize), MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+                parts.add(new Replacement(mail.getKey(), surplus, false));
+            }
+            parts.add(new Replacement(mail.getKey(), keys.subList(keys.size() - lastPartSize, keys.size()), true));
+
+            for (final Replacement part : parts) {
+                final int size = part.keys.size() + (part.last ? newKeys : 0);
+                if (touched + size > MAX_ENTITY_GROUPS_PER_TRANSACTION) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<Replacement>();
+                    touched = 0;
+                }
+                chunk.add(part);
+                touched += size;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    static Entity createNewScheduledMailEntity(String userId, String mailId, Date scheduledFor, ProcessingOptionSet processingOptions, Date scheduledAt) {
         final Entity scheduledMail = new Entity(EntityConstants.ScheduledMail.NAME);
         scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.USER_ID, userId);
         scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.MAIL_ID, mailId);
@@ -82,18 +429,63 @@ public class EntityHelper {
         scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESSED_AT, null);
         scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, false);
         scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, null);
-        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.PROCESSING_OPTIONS, processingOptions);
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.PROCESSING_OPTIONS, processingOptions.toBits());
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.SCHEMA_VERSION, EntityConstants.ScheduledMail.CURRENT_SCHEMA_VERSION);
         return scheduledMail;
     }
 
-    private static void markAllPreviouslyScheduledMailsAsCancelled(final List<Entity> unprocessedSameScheduledMails, final Date now) {
+    /**
+     * Reads the processing options of a scheduled mail, migrating the entity to the current schema if needed.
+     * The migration only happens in memory - it is persisted with the next put of the entity.
+     */
+    public static ProcessingOptionSet getProcessingOptions(final Entity scheduledMail) {
+        migrate(scheduledMail);
+        final Long bits = (Long) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.PROCESSING_OPTIONS);
+        return ProcessingOptionSet.fromBits(bits == null ? 0 : bits);
+    }
+
+    /**
+     * Brings a scheduled mail to {@link EntityConstants.ScheduledMail#CURRENT_SCHEMA_VERSION} (in memory only)
+     *
+     * @return whether the entity had to be changed
+     */
+    public static boolean migrate(final Entity scheduledMail) {
+        final Long schemaVersion = (Long) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.SCHEMA_VERSION);
+        if (schemaVersion != null && schemaVersion >= EntityConstants.ScheduledMail.CURRENT_SCHEMA_VERSION) {
+            return false;
+        }
+        final Object options = scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.PROCESSING_OPTIONS);
+        final ProcessingOptionSet processingOptions;
+        if (options instanceof Collection) {
+            @SuppressWarnings("unchecked")
+            final Collection<String> keys = (Collection<String>) options;
+            processingOptions = ProcessingOptionSet.fromKeys(keys);
+        } else if (options instanceof Long) {
+            processingOptions = ProcessingOptionSet.fromBits((Long) options);
+        } else {
+            // an empty list is not stored by the Datastore at all
+            processingOptions = ProcessingOptionSet.fromBits(0);
+        }
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.PROCESSING_OPTIONS, processingOptions.toBits());
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.SCHEMA_VERSION, EntityConstants.ScheduledMail.CURRENT_SCHEMA_VERSION);
+        return true;
+    }
+
+    private static void markAllPreviouslyScheduledMailsAsCancelled(final List<Entity> unprocessedSameScheduledMails, final Date now, final StatusCounters statusCounters) {
         for (final Entity sameScheduledMail : unprocessedSameScheduledMails) {
-            sameScheduledMail.setProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, true);
-            sameScheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESSED_AT, now);
-            sameScheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, EntityConstants.ScheduledMail.Property.ProcessStatus.CANCELED);
+            markAsCancelled(sameScheduledMail, now);
+            statusCounters.increment(now, EntityConstants.ScheduledMail.Property.ProcessStatus.CANCELED,
+                    (String) sameScheduledMail.getProperty(EntityConstants.ScheduledMail.Property.USER_ID));
         }
     }
 
+    static void markAsCancelled(final Entity scheduledMail, final Date now) {
+        migrate(scheduledMail);
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, true);
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESSED_AT, now);
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, EntityConstants.ScheduledMail.Property.ProcessStatus.CANCELED);
+    }
+
     private static List<Entity> getUnprocessedScheduledMailsFromSameUserWithSameMailId(final String userId, final String mailId, final DatastoreService ds) {
         final Query.Filter mailIdFilter = new Query.FilterPredicate(
                 EntityConstants.ScheduledMail.Property.MAIL_ID,
@@ -117,6 +509,34 @@ public class EntityHelper {
         return pq.asList(FetchOptions.Builder.withDefaults());
     }
 
+    /**
+     * @return the keys of the pending schedules per mail ID, only for the given mail IDs
+     */
+    private static Map<String, List<Key>> getUnprocessedScheduledMailKeysFromSameUserWithMailIds(final DatastoreService ds, final String userId, final Collection<String> mailIds) {
+        final Set<String> wanted = new HashSet<String>(mailIds);
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME)
+                .setFilter(Query.CompositeFilterOperator.and(
+                        getUserIdFilter(userId),
+                        UNPROCESSED_SCHEDULED_MAIL_FILTER
+                ))
+                .addProjection(new PropertyProjection(EntityConstants.ScheduledMail.Property.MAIL_ID, String.class));
+
+        final Map<String, List<Key>> keys = new LinkedHashMap<String, List<Key>>();
+        for (final Entity scheduledMail : ds.prepare(q).asIterable(FetchOptions.Builder.withChunkSize(MAIL_ID_CHUNK_SIZE))) {
+            final String mailId = (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID);
+            if (!wanted.contains(mailId)) {
+                continue;
+            }
+            List<Key> mailKeys = keys.get(mailId);
+            if (mailKeys == null) {
+                mailKeys = new ArrayList<Key>(1);
+                keys.put(mailId, mailKeys);
+            }
+            mailKeys.add(scheduledMail.getKey());
+        }
+        return keys;
+    }
+
     private static Query.Filter getUserIdFilter(String userId) {
         return new Query.FilterPredicate(
                 EntityConstants.ScheduledMail.Property.USER_ID,
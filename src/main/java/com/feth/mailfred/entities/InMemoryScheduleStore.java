@@ -0,0 +1,316 @@
+package com.feth.mailfred.entities;
+
+import com.feth.mailfred.exceptions.StoringFailedException;
+import com.feth.mailfred.scheduler.Scheduler;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the scheduled mails in memory, for tests and for measuring the scheduling and processing logic
+ * without any storage latency. Nothing survives the instance.
+ * <p/>
+ * The pending schedules are indexed by due time (for {@link #findDue(Date)}) and by user and mail ID
+ * (for everything else). Changes of a user's schedules are serialized per user, so concurrent
+ * requests of different users don't block each other.
+ * <p/>
+ * Entities are handed out as copies - like entities read from the Datastore, changing them has no effect
+ * until they are passed back. Stored entities are never changed once they are indexed, a change stores a new copy,
+ * so reads don't need a lock. Creating entity keys still needs an App Engine API environment
+ * (e.g. from the LocalServiceTestHelper), but no service is called.
+ * <p/>
+ * The pending mails of revoked users stay parked (out of {@link #findDue(Date)}) until they are cleared,
+ * the statistics are totals per process status.
+ */
+public class InMemoryScheduleStore implements ScheduleStore {
+
+    private static final Comparator<Entity> BY_DUE_TIME = new Comparator<Entity>() {
+        @Override
+        public int compare(final Entity a, final Entity b) {
+            final int byDueTime = getScheduledFor(a).compareTo(getScheduledFor(b));
+            if (byDueTime != 0) {
+                return byDueTime;
+            }
+            final long idA = a.getKey().getId();
+            final long idB = b.getKey().getId();
+            return idA < idB ? -1 : (idA == idB ? 0 : 1);
+        }
+    };
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    /**
+     * The latest version of all scheduled mails by ID, including the processed and cancelled ones
+     */
+    private final ConcurrentMap<Long, Entity> scheduledMails = new ConcurrentHashMap<Long, Entity>();
+    private final ConcurrentSkipListSet<Entity> pendingByDueTime = new ConcurrentSkipListSet<Entity>(BY_DUE_TIME);
+    /**
+     * user ID to mail ID to the pending schedule, also the lock for changes of the user's schedules
+     */
+    private final ConcurrentMap<String, Map<String, Entity>> pendingByUser = new ConcurrentHashMap<String, Map<String, Entity>>();
+    private final Set<String> revokedUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, AtomicLong> statusTotals = new ConcurrentHashMap<String, AtomicLong>();
+
+    @Override
+    public void schedule(final Date now, final String userId, final Scheduler scheduler, final String mailId, final Date scheduleAt, final ProcessingOptionSet processingOptions) throws IOException, StoringFailedException {
+        if (scheduler != null) {
+            try {
+                scheduler.schedule(mailId, processingOptions.isArchiveAfterScheduling());
+            } catch (IOException e) {
+                throw new StoringFailedException();
+            }
+        }
+        final Map<String, Entity> pending = getPending(userId);
+        synchronized (pending) {
+            removePending(pending, mailId, now);
+            addPending(pending, userId, mailId, scheduleAt, processingOptions, now);
+        }
+    }
+
+    @Override
+    public Map<String, Boolean> cancel(final Date now, final String userId, final Collection<String> mailIds) {
+        return replace(now, userId, mailIds, null);
+    }
+
+    @Override
+    public Map<String, Boolean> reschedule(final Date now, final String userId, final Collection<String> mailIds, final Date scheduleAt) {
+        return replace(now, userId, mailIds, scheduleAt);
+    }
+
+    private Map<String, Boolean> replace(final Date now, final String userId, final Collection<String> mailIds, final Date scheduleAt) {
+        final Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+        final Map<String, Entity> pending = getPending(userId);
+        synchronized (pending) {
+            for (final String mailId : mailIds) {
+                final Entity cancelled = removePending(pending, mailId, now);
+                if (cancelled == null) {
+                    continue;
+                }
+                if (scheduleAt != null) {
+                    addPending(pending, userId, mailId, scheduleAt, EntityHelper.getProcessingOptions(cancelled), now);
+                }
+                results.put(mailId, true);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Iterable<Entity> findDue(final Date dueBefore) {
+        final List<Entity> due = new ArrayList<Entity>();
+        for (final Entity scheduledMail : pendingByDueTime) {
+            if (getScheduledFor(scheduledMail).after(dueBefore)) {
+                break;
+            }
+            due.add(scheduledMail.clone());
+        }
+        return due;
+    }
+
+    @Override
+    public Iterator<String> findPendingForUser(final String userId) {
+        final Map<String, Entity> pending = getPending(userId);
+        synchronized (pending) {
+            return new ArrayList<String>(pending.keySet()).iterator();
+        }
+    }
+
+    @Override
+    public List<PendingSchedulesCache.PendingSchedule> findPendingSchedules(final String userId) {
+        final Map<String, Entity> pending = getPending(userId);
+        final List<PendingSchedulesCache.PendingSchedule> schedules;
+        synchronized (pending) {
+            schedules = new ArrayList<PendingSchedulesCache.PendingSchedule>(pending.size());
+            for (final Entity scheduledMail : pending.values()) {
+                schedules.add(new PendingSchedulesCache.PendingSchedule(
+                        (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID),
+                        getScheduledFor(scheduledMail).getTime(),
+                        EntityHelper.getProcessingOptions(scheduledMail).toBits()
+                ));
+            }
+        }
+        Collections.sort(schedules, PendingSchedulesCache.BY_DUE_TIME);
+        return schedules;
+    }
+
+    @Override
+    public Entity claim(final Key scheduledMailKey, final String claimant, final Date now, final Date claimedUntil) {
+        final Entity stored = scheduledMails.get(scheduledMailKey.getId());
+        if (stored == null) {
+            return null;
+        }
+        final Map<String, Entity> pending = getPending((String) stored.getProperty(EntityConstants.ScheduledMail.Property.USER_ID));
+        synchronized (pending) {
+            final Entity current = scheduledMails.get(scheduledMailKey.getId());
+            if (!EntityHelper.isClaimable(current, now)) {
+                return null;
+            }
+            final Entity claimed = current.clone();
+            EntityHelper.markClaimed(claimed, claimant, claimedUntil);
+            scheduledMails.put(claimed.getKey().getId(), claimed);
+            // a claimable mail is pending, the indexes must hand out the claimed version from now on
+            pending.put((String) claimed.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID), claimed);
+            pendingByDueTime.remove(current);
+            pendingByDueTime.add(claimed);
+            return claimed.clone();
+        }
+    }
+
+    @Override
+    public void recordResult(final Entity scheduledMail, final String status, final Date processedAt) {
+        final String userId = (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.USER_ID);
+        final String mailId = (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID);
+        final Map<String, Entity> pending = getPending(userId);
+        synchronized (pending) {
+            final Entity stored = scheduledMails.get(scheduledMail.getKey().getId());
+            if (stored == null) {
+                return;
+            }
+            final Entity current = pending.get(mailId);
+            if (current != null && current.getKey().equals(stored.getKey())) {
+                pending.remove(mailId);
+                pendingByDueTime.remove(current);
+            }
+            final Entity processed = stored.clone();
+            EntityHelper.markProcessed(processed, status, processedAt);
+            scheduledMails.put(processed.getKey().getId(), processed);
+        }
+        AtomicLong total = statusTotals.get(status);
+        if (total == null) {
+            final AtomicLong created = new AtomicLong();
+            total = statusTotals.putIfAbsent(status, created);
+            if (total == null) {
+                total = created;
+            }
+        }
+        total.incrementAndGet();
+    }
+
+    /**
+     * The totals are kept in memory right away, there is nothing to write
+     */
+    @Override
+    public void flushStatistics() {
+    }
+
+    @Override
+    public boolean isRevoked(final String userId) {
+        return revokedUsers.contains(userId);
+    }
+
+    @Override
+    public void markRevoked(final String userId, final Exception cause) {
+        revokedUsers.add(userId);
+        setParked(userId, EntityConstants.ScheduledMail.Property.ProcessStatus.PARKED);
+    }
+
+    @Override
+    public void clearRevoked(final String userId) {
+        revokedUsers.remove(userId);
+        setParked(userId, null);
+    }
+
+    /**
+     * @return the number of processed mails per process status
+     */
+    public Map<String, Long> getStatusTotals() {
+        final Map<String, Long> totals = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> total : statusTotals.entrySet()) {
+            totals.put(total.getKey(), total.getValue().get());
+        }
+        return totals;
+    }
+
+    /**
+     * @return the number of all scheduled mails, including the processed and cancelled ones
+     */
+    public int size() {
+        return scheduledMails.size();
+    }
+
+    public int getPendingCount() {
+        return pendingByDueTime.size();
+    }
+
+    /**
+     * Parks the pending mails of a user (takes them out of the due index) or brings them back
+     *
+     * @param status {@link EntityConstants.ScheduledMail.Property.ProcessStatus#PARKED} or null to unpark
+     */
+    private void setParked(final String userId, final String status) {
+        final Map<String, Entity> pending = getPending(userId);
+        synchronized (pending) {
+            for (final Map.Entry<String, Entity> entry : pending.entrySet()) {
+                final Entity current = entry.getValue();
+                if (status == null ? current.getProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS) == null
+                        : status.equals(current.getProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS))) {
+                    continue;
+                }
+                final Entity changed = current.clone();
+                changed.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, status);
+                pendingByDueTime.remove(current);
+                scheduledMails.put(changed.getKey().getId(), changed);
+                entry.setValue(changed);
+                if (status == null) {
+                    pendingByDueTime.add(changed);
+                }
+            }
+        }
+    }
+
+    private Map<String, Entity> getPending(final String userId) {
+        Map<String, Entity> pending = pendingByUser.get(userId);
+        if (pending == null) {
+            final Map<String, Entity> created = new LinkedHashMap<String, Entity>();
+            pending = pendingByUser.putIfAbsent(userId, created);
+            if (pending == null) {
+                pending = created;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Must be called with the lock of the user's pending schedules
+     */
+    private Entity removePending(final Map<String, Entity> pending, final String mailId, final Date now) {
+        final Entity current = pending.remove(mailId);
+        if (current == null) {
+            return null;
+        }
+        pendingByDueTime.remove(current);
+        final Entity cancelled = current.clone();
+        EntityHelper.markAsCancelled(cancelled, now);
+        scheduledMails.put(cancelled.getKey().getId(), cancelled);
+        return cancelled;
+    }
+
+    /**
+     * Must be called with the lock of the user's pending schedules
+     */
+    private void addPending(final Map<String, Entity> pending, final String userId, final String mailId, final Date scheduleAt, final ProcessingOptionSet processingOptions, final Date now) {
+        final Entity scheduledMail = new Entity(EntityConstants.ScheduledMail.NAME, nextId.getAndIncrement());
+        scheduledMail.setPropertiesFrom(EntityHelper.createNewScheduledMailEntity(userId, mailId, scheduleAt, processingOptions, now));
+        scheduledMails.put(scheduledMail.getKey().getId(), scheduledMail);
+        pending.put(mailId, scheduledMail);
+        pendingByDueTime.add(scheduledMail);
+    }
+
+    private static Date getScheduledFor(final Entity scheduledMail) {
+        return (Date) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR);
+    }
+}
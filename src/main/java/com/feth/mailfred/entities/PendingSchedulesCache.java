@@ -0,0 +1,203 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read model of the pending schedules of every user, kept in memcache.
+ * <p/>
+ * Scheduling and processing update the cached list of a user in place, a miss rebuilds it with a keys-only query
+ * and a batch get - the batch get is strongly consistent, so mails which were processed or cancelled but are still
+ * found in the index don't show up in a rebuilt list.
+ * <p/>
+ * While a read rebuilds a list, a {@link Loading} marker takes its place. The read only caches its list if the marker
+ * is untouched, an update replaces the marker - so a list loaded before an update is never cached.
+ */
+public class PendingSchedulesCache {
+
+    static final String MEMCACHE_NAMESPACE = "pendingSchedules";
+    /**
+     * Bounds how long a list can be stale if an update got lost (e.g. because memcache was flushed in between)
+     */
+    private static final Expiration EXPIRATION = Expiration.byDeltaSeconds(10 * 60);
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+    /**
+     * A marker of a read that died is simply replaced by the next read, this only bounds the cache size
+     */
+    private static final Expiration LOADING_EXPIRATION = Expiration.byDeltaSeconds(60);
+    private static final int FETCH_CHUNK_SIZE = 500;
+
+    public static class PendingSchedule implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String mailId;
+        private final long scheduledFor;
+        private final long processingOptions;
+
+        public PendingSchedule(final String mailId, final long scheduledFor, final long processingOptions) {
+            this.mailId = mailId;
+            this.scheduledFor = scheduledFor;
+            this.processingOptions = processingOptions;
+        }
+
+        public String getMailId() {
+            return mailId;
+        }
+
+        public long getScheduledFor() {
+            return scheduledFor;
+        }
+
+        public ProcessingOptionSet getProcessingOptions() {
+            return ProcessingOptionSet.fromBits(processingOptions);
+        }
+    }
+
+    /**
+     * Takes the place of a list while a read loads it
+     */
+    static class Loading implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final Comparator<PendingSchedule> BY_DUE_TIME = new Comparator<PendingSchedule>() {
+        @Override
+        public int compare(final PendingSchedule a, final PendingSchedule b) {
+            return a.scheduledFor < b.scheduledFor ? -1 : (a.scheduledFor == b.scheduledFor ? 0 : 1);
+        }
+    };
+
+    private static MemcacheService cache() {
+        return MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+    }
+
+    /**
+     * @param ds the Datastore to load the list from on a miss
+     * @return the pending schedules of the given user, the next due first
+     */
+    @SuppressWarnings("unchecked")
+    public static List<PendingSchedule> get(final DatastoreService ds, final String userId) {
+        final MemcacheService.IdentifiableValue cached = startLoading(userId);
+        if (cached != null && cached.getValue() instanceof List) {
+            return (List<PendingSchedule>) cached.getValue();
+        }
+        final List<PendingSchedule> pending = load(ds, userId);
+        finishLoading(userId, cached, pending);
+        return pending;
+    }
+
+    /**
+     * @return the cached list, or the marker to replace with the loaded list (null if memcache didn't take it)
+     */
+    static MemcacheService.IdentifiableValue startLoading(final String userId) {
+        final MemcacheService cache = cache();
+        final MemcacheService.IdentifiableValue cached = cache.getIdentifiable(userId);
+        if (cached != null) {
+            return cached;
+        }
+        cache.put(userId, new Loading(), LOADING_EXPIRATION, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return cache.getIdentifiable(userId);
+    }
+
+    /**
+     * @return whether the list was cached, which fails if an update replaced the marker in the meantime
+     */
+    static boolean finishLoading(final String userId, final MemcacheService.IdentifiableValue marker, final List<PendingSchedule> pending) {
+        return marker != null && cache().putIfUntouched(userId, marker, pending, EXPIRATION);
+    }
+
+    private static List<PendingSchedule> load(final DatastoreService ds, final String userId) {
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME)
+                .setFilter(Query.CompositeFilterOperator.and(
+                        new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.USER_ID, Query.FilterOperator.EQUAL, userId),
+                        new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, Query.FilterOperator.EQUAL, false)
+                ))
+                .setKeysOnly();
+        final List<Key> keys = new ArrayList<Key>();
+        for (final Entity key : ds.prepare(q).asIterable(FetchOptions.Builder.withChunkSize(FETCH_CHUNK_SIZE))) {
+            keys.add(key.getKey());
+        }
+
+        final Map<Key, Entity> scheduledMails = ds.get(keys);
+        final ArrayList<PendingSchedule> pending = new ArrayList<PendingSchedule>(scheduledMails.size());
+        for (final Entity scheduledMail : scheduledMails.values()) {
+            // the index might be behind, the entity itself is up to date
+            if (Boolean.TRUE.equals(scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED))) {
+                continue;
+            }
+            pending.add(new PendingSchedule(
+                    (String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID),
+                    ((Date) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR)).getTime(),
+                    EntityHelper.getProcessingOptions(scheduledMail).toBits()
+            ));
+        }
+        Collections.sort(pending, BY_DUE_TIME);
+        return pending;
+    }
+
+    /**
+     * A mail got (re)scheduled - replaces any pending schedule of the same mail
+     */
+    public static void onScheduled(final String userId, final String mailId, final long scheduledFor, final ProcessingOptionSet processingOptions) {
+        update(userId, mailId, new PendingSchedule(mailId, scheduledFor, processingOptions.toBits()));
+    }
+
+    /**
+     * A mail got processed or cancelled
+     */
+    public static void onRemoved(final String userId, final String mailId) {
+        update(userId, mailId, null);
+    }
+
+    /**
+     * Updates a cached list with compare and set. Without a list there is nothing to update, unless a read is loading
+     * it right now - then the marker of the read is replaced, so the read doesn't cache what it loaded.
+     */
+    @SuppressWarnings("unchecked")
+    private static void update(final String userId, final String mailId, final PendingSchedule replacement) {
+        final MemcacheService cache = cache();
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            final MemcacheService.IdentifiableValue cached = cache.getIdentifiable(userId);
+            if (cached == null) {
+                return;
+            }
+            if (!(cached.getValue() instanceof List)) {
+                cache.put(userId, new Loading(), LOADING_EXPIRATION);
+                return;
+            }
+            final ArrayList<PendingSchedule> pending = new ArrayList<PendingSchedule>((List<PendingSchedule>) cached.getValue());
+            final Iterator<PendingSchedule> it = pending.iterator();
+            while (it.hasNext()) {
+                if (it.next().getMailId().equals(mailId)) {
+                    it.remove();
+                }
+            }
+            if (replacement != null) {
+                pending.add(replacement);
+                Collections.sort(pending, BY_DUE_TIME);
+            }
+            if (cache.putIfUntouched(userId, cached, pending, EXPIRATION)) {
+                return;
+            }
+        }
+        // too much contention, better load it again than serve a wrong list
+        cache.delete(userId);
+    }
+}
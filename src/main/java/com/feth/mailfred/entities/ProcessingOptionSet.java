@@ -0,0 +1,122 @@
+package com.feth.mailfred.entities;
+
+import com.feth.mailfred.entities.EntityConstants.ScheduledMail.Property.ProcessingOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The processing options of a scheduled mail, stored as a bit set in a single long.
+ * <p/>
+ * The bit of an option must never change, as it is persisted in the Datastore.
+ */
+public final class ProcessingOptionSet {
+
+    public static final long STAR = 1L;
+    public static final long ARCHIVE_AFTER_SCHEDULING = 1L << 1;
+    public static final long MARK_UNREAD = 1L << 2;
+    public static final long MOVE_TO_INBOX = 1L << 3;
+    public static final long ONLY_IF_NO_ANSWER = 1L << 4;
+
+    private static final String[] KEYS = {
+            ProcessingOptions.STAR,
+            ProcessingOptions.ARCHIVE_AFTER_SCHEDULING,
+            ProcessingOptions.MARK_UNREAD,
+            ProcessingOptions.MOVE_TO_INBOX,
+            ProcessingOptions.ONLY_IF_NO_ANSWER
+    };
+    private static final long[] BITS = {
+            STAR,
+            ARCHIVE_AFTER_SCHEDULING,
+            MARK_UNREAD,
+            MOVE_TO_INBOX,
+            ONLY_IF_NO_ANSWER
+    };
+
+    private final long bits;
+
+    private ProcessingOptionSet(final long bits) {
+        this.bits = bits;
+    }
+
+    public static ProcessingOptionSet fromBits(final long bits) {
+        return new ProcessingOptionSet(bits);
+    }
+
+    /**
+     * @param keys option keys as found in {@link ProcessingOptions}, unknown keys are ignored
+     */
+    public static ProcessingOptionSet fromKeys(final Collection<String> keys) {
+        long bits = 0;
+        for (int i = 0; i < KEYS.length; i++) {
+            if (keys.contains(KEYS[i])) {
+                bits |= BITS[i];
+            }
+        }
+        return new ProcessingOptionSet(bits);
+    }
+
+    public long toBits() {
+        return bits;
+    }
+
+    /**
+     * @return the keys of all set options as found in {@link ProcessingOptions}
+     */
+    public List<String> toKeys() {
+        final List<String> keys = new ArrayList<String>(KEYS.length);
+        for (int i = 0; i < KEYS.length; i++) {
+            if (has(BITS[i])) {
+                keys.add(KEYS[i]);
+            }
+        }
+        return keys;
+    }
+
+    public boolean has(final long option) {
+        return (bits & option) != 0;
+    }
+
+    public boolean isStar() {
+        return has(STAR);
+    }
+
+    public boolean isArchiveAfterScheduling() {
+        return has(ARCHIVE_AFTER_SCHEDULING);
+    }
+
+    public boolean isMarkUnread() {
+        return has(MARK_UNREAD);
+    }
+
+    public boolean isMoveToInbox() {
+        return has(MOVE_TO_INBOX);
+    }
+
+    public boolean isOnlyIfNoAnswer() {
+        return has(ONLY_IF_NO_ANSWER);
+    }
+
+    /**
+     * @return whether at least one option is set that actually does something with the mail when it is due
+     */
+    public boolean hasAnyAction() {
+        return has(MARK_UNREAD | MOVE_TO_INBOX | STAR);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof ProcessingOptionSet && ((ProcessingOptionSet) o).bits == bits;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toKeys().toString();
+    }
+}
@@ -0,0 +1,99 @@
+package com.feth.mailfred.entities;
+
+import com.feth.mailfred.exceptions.StoringFailedException;
+import com.feth.mailfred.scheduler.Scheduler;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the scheduled mails live. Scheduled mails are handed out as {@link Entity} objects with the properties
+ * of {@link EntityConstants.ScheduledMail}, whatever the storage behind them is.
+ * <p/>
+ * The store to use is set in {@link com.feth.mailfred.util.Utils#getScheduleStore()}.
+ */
+public interface ScheduleStore {
+
+    /**
+     * Schedules a mail, cancelling any pending schedule of the same mail, and adds the scheduled label in Gmail.
+     * Nothing is stored if the label can't be added.
+     */
+    void schedule(Date now, String userId, Scheduler scheduler, String mailId, Date scheduleAt, ProcessingOptionSet processingOptions) throws IOException, StoringFailedException;
+
+    /**
+     * Cancels the pending schedules of the given mails
+     *
+     * @return per mail ID whether the schedule was cancelled (true) or storing failed (false),
+     * mails without a pending schedule are missing
+     */
+    Map<String, Boolean> cancel(Date now, String userId, Collection<String> mailIds);
+
+    /**
+     * Moves the pending schedules of the given mails to a new due time, keeping their processing options
+     *
+     * @return per mail ID whether the schedule was moved (true) or storing failed (false),
+     * mails without a pending schedule are missing
+     */
+    Map<String, Boolean> reschedule(Date now, String userId, Collection<String> mailIds, Date scheduleAt);
+
+    /**
+     * @return all unprocessed mails which are due at the given time, the oldest first
+     */
+    Iterable<Entity> findDue(Date dueBefore);
+
+    /**
+     * The lookup may run in the background until the iterator is used, so call this early
+     *
+     * @return the mail IDs of all pending schedules of a user
+     */
+    Iterator<String> findPendingForUser(String userId);
+
+    /**
+     * Claims a due mail before it is processed, so no other processor handles it at the same time
+     *
+     * @param claimedUntil when the claim expires, in case the claimant dies before recording the result
+     * @return the current state of the mail to process, null if it must be skipped
+     * because it is not pending anymore or somebody else claimed it
+     */
+    Entity claim(Key scheduledMailKey, String claimant, Date now, Date claimedUntil);
+
+    /**
+     * @return the pending schedules of a user, the next due first
+     */
+    List<PendingSchedulesCache.PendingSchedule> findPendingSchedules(String userId);
+
+    /**
+     * Stores the outcome of processing a scheduled mail and counts it in the statistics
+     */
+    void recordResult(Entity scheduledMail, String status, Date processedAt);
+
+    /**
+     * Writes the statistics counted since the last flush
+     */
+    void flushStatistics();
+
+    /**
+     * @return whether the given user revoked our access and has not authorized us again since
+     */
+    boolean isRevoked(String userId);
+
+    /**
+     * Marks the user as revoked and parks the pending mails of the user (they are not due anymore)
+     * until {@link #clearRevoked(String)}
+     *
+     * @param cause the failure which tells us that the access was revoked,
+     *              see {@link AuthHealthHelper#isAuthFailure(Throwable)}
+     */
+    void markRevoked(String userId, Exception cause);
+
+    /**
+     * To be called when the user authorized us (again) - the parked mails of the user become due again
+     */
+    void clearRevoked(String userId);
+}
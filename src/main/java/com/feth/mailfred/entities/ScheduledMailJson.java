@@ -0,0 +1,106 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Maps scheduled mails to flat JSON objects and back, used for the NDJSON export and import.
+ * Dates are written as milliseconds since the epoch, the processing options as their bits.
+ */
+public class ScheduledMailJson {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_OPTIONS = "options";
+
+    /**
+     * The status filter value for mails which haven't been processed yet
+     */
+    public static final String STATUS_PENDING = "pending";
+
+    public static JSONObject toJson(final Entity scheduledMail) {
+        final JSONObject json = new JSONObject();
+        json.put(FIELD_ID, scheduledMail.getKey().getId());
+        json.put(EntityConstants.ScheduledMail.Property.USER_ID, scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.USER_ID));
+        json.put(EntityConstants.ScheduledMail.Property.MAIL_ID, scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID));
+        json.put(EntityConstants.ScheduledMail.Property.SCHEDULED_AT, toMillis(scheduledMail, EntityConstants.ScheduledMail.Property.SCHEDULED_AT));
+        json.put(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, toMillis(scheduledMail, EntityConstants.ScheduledMail.Property.SCHEDULED_FOR));
+        json.put(EntityConstants.ScheduledMail.Property.PROCESSED_AT, toMillis(scheduledMail, EntityConstants.ScheduledMail.Property.PROCESSED_AT));
+        json.put(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, Boolean.TRUE.equals(scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED)));
+        json.put(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS));
+        // reading the options migrates old entities, so the export is always in the current schema
+        json.put(FIELD_OPTIONS, EntityHelper.getProcessingOptions(scheduledMail).toBits());
+        return json;
+    }
+
+    /**
+     * @param keepId whether the entity gets the ID it was exported with (an import is idempotent then, the importer
+     *               reserves the IDs) or a new one
+     */
+    public static Entity fromJson(final JSONObject json, final boolean keepId) {
+        final Entity scheduledMail = keepId ?
+                new Entity(EntityConstants.ScheduledMail.NAME, json.getLong(FIELD_ID)) :
+                new Entity(EntityConstants.ScheduledMail.NAME);
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.USER_ID, json.getString(EntityConstants.ScheduledMail.Property.USER_ID));
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.MAIL_ID, json.getString(EntityConstants.ScheduledMail.Property.MAIL_ID));
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.SCHEDULED_AT, toDate(json, EntityConstants.ScheduledMail.Property.SCHEDULED_AT));
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, toDate(json, EntityConstants.ScheduledMail.Property.SCHEDULED_FOR));
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESSED_AT, toDate(json, EntityConstants.ScheduledMail.Property.PROCESSED_AT));
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, json.getBoolean(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED));
+        scheduledMail.setProperty(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, json.optString(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, null));
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.PROCESSING_OPTIONS, json.getLong(FIELD_OPTIONS));
+        scheduledMail.setUnindexedProperty(EntityConstants.ScheduledMail.Property.SCHEMA_VERSION, EntityConstants.ScheduledMail.CURRENT_SCHEMA_VERSION);
+        return scheduledMail;
+    }
+
+    /**
+     * Builds the query for an export. A date range needs the sort on scheduledFor, so all filter combinations
+     * are served by the indexes in datastore-indexes.xml.
+     *
+     * @param userId a user ID or null for all users
+     * @param status a process status, {@link #STATUS_PENDING} or null for all
+     * @param from   the lower bound (inclusive) of scheduledFor or null
+     * @param to     the upper bound (exclusive) of scheduledFor or null
+     */
+    public static Query buildQuery(final String userId, final String status, final Date from, final Date to) {
+        final List<Query.Filter> filters = new ArrayList<Query.Filter>(4);
+        if (userId != null) {
+            filters.add(new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.USER_ID, Query.FilterOperator.EQUAL, userId));
+        }
+        if (STATUS_PENDING.equals(status)) {
+            filters.add(new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, Query.FilterOperator.EQUAL, false));
+        } else if (status != null) {
+            filters.add(new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, Query.FilterOperator.EQUAL, status));
+        }
+        if (from != null) {
+            filters.add(new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, Query.FilterOperator.GREATER_THAN_OR_EQUAL, from));
+        }
+        if (to != null) {
+            filters.add(new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, Query.FilterOperator.LESS_THAN, to));
+        }
+
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME);
+        if (filters.size() == 1) {
+            q.setFilter(filters.get(0));
+        } else if (filters.size() > 1) {
+            q.setFilter(Query.CompositeFilterOperator.and(filters));
+        }
+        if (from != null || to != null) {
+            q.addSort(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR);
+        }
+        return q;
+    }
+
+    private static Object toMillis(final Entity entity, final String property) {
+        final Date date = (Date) entity.getProperty(property);
+        return date == null ? JSONObject.NULL : date.getTime();
+    }
+
+    private static Date toDate(final JSONObject json, final String field) {
+        return json.isNull(field) ? null : new Date(json.getLong(field));
+    }
+}
@@ -0,0 +1,193 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.common.collect.Lists;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+/**
+ * Sharded counters for the outcome of scheduled mails per day (UTC) and process status, overall and,
+ * if {@link #PER_USER_PROPERTY} is set, per user.
+ * <p/>
+ * Increments are coalesced in memory and written by {@link #flush()} on a random shard per counter,
+ * so concurrent processing runs hardly ever contend. The shards of up to
+ * {@link EntityHelper#MAX_ENTITY_GROUPS_PER_TRANSACTION} counters are written in one transaction.
+ * An instance is not thread safe, every run should use its own.
+ */
+public class StatusCounters {
+
+    private static final Logger log = Logger.getLogger(StatusCounters.class.getName());
+
+    /**
+     * Per user counters cost a write per user and status, so they are off unless this system property is "true"
+     */
+    public static final String PER_USER_PROPERTY = "mailfred.stats.perUser";
+
+    /**
+     * The overall counters are written by every processing run, so they are spread over many entity groups
+     */
+    private static final int SHARD_COUNT = 20;
+    /**
+     * A single user hardly ever causes concurrent writes
+     */
+    private static final int USER_SHARD_COUNT = 1;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String SEPARATOR = "/";
+    private static final String DAY_FORMAT = "yyyy-MM-dd";
+
+    private static final Random random = new Random();
+
+    /**
+     * counter name (the shard key without the shard number) to the pending increment
+     */
+    private final Map<String, Long> pending = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> pendingPerUser = new LinkedHashMap<String, Long>();
+
+    public void increment(final Date when, final String status, final String userId) {
+        final String day = formatDay(when);
+        add(pending, getCounterName(day, status, null));
+        if (userId != null && isPerUserEnabled()) {
+            add(pendingPerUser, getCounterName(day, status, userId));
+        }
+    }
+
+    public static boolean isPerUserEnabled() {
+        return Boolean.parseBoolean(System.getProperty(PER_USER_PROPERTY));
+    }
+
+    private static void add(final Map<String, Long> counters, final String counterName) {
+        final Long count = counters.get(counterName);
+        counters.put(counterName, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Writes all pending increments. Failures are logged only, statistics must never break processing.
+     */
+    public void flush() {
+        if (pending.isEmpty() && pendingPerUser.isEmpty()) {
+            return;
+        }
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        flush(ds, pending, SHARD_COUNT);
+        flush(ds, pendingPerUser, USER_SHARD_COUNT);
+    }
+
+    private static void flush(final DatastoreService ds, final Map<String, Long> counters, final int shards) {
+        final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counters.entrySet());
+        for (final List<Map.Entry<String, Long>> chunk : Lists.partition(entries, EntityHelper.MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+            boolean written = false;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && !written; attempt++) {
+                written = incrementShards(ds, chunk, shards);
+            }
+            if (!written) {
+                log.warning(String.format("Could not add to the counters %s", chunk));
+            }
+        }
+        counters.clear();
+    }
+
+    /**
+     * Adds to a random shard of each of the given counters in one transaction
+     */
+    private static boolean incrementShards(final DatastoreService ds, final List<Map.Entry<String, Long>> counters, final int shards) {
+        final Map<Key, Long> deltas = new LinkedHashMap<Key, Long>();
+        for (final Map.Entry<String, Long> counter : counters) {
+            deltas.put(getShardKey(counter.getKey(), random.nextInt(shards)), counter.getValue());
+        }
+        final Transaction txn = ds.beginTransaction(TransactionOptions.Builder.withXG(deltas.size() > 1));
+        try {
+            final Map<Key, Entity> existing = ds.get(txn, deltas.keySet());
+            final List<Entity> toBePut = new ArrayList<Entity>(deltas.size());
+            for (final Map.Entry<Key, Long> delta : deltas.entrySet()) {
+                Entity shard = existing.get(delta.getKey());
+                if (shard == null) {
+                    shard = new Entity(delta.getKey());
+                }
+                final Long count = (Long) shard.getProperty(EntityConstants.StatusCounterShard.Property.COUNT);
+                shard.setUnindexedProperty(EntityConstants.StatusCounterShard.Property.COUNT, (count == null ? 0 : count) + delta.getValue());
+                toBePut.add(shard);
+            }
+            ds.put(txn, toBePut);
+            txn.commit();
+            return true;
+        } catch (ConcurrentModificationException e) {
+            return false;
+        } catch (final Exception e) {
+            log.severe(e.getMessage());
+            return false;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /**
+     * Reads the totals of all process statuses with a single batch get
+     *
+     * @param day    the day to read the counters of
+     * @param userId a user ID for the counters of a single user, null for the overall counters
+     * @return the total per process status
+     */
+    public static Map<String, Long> getTotals(final DatastoreService ds, final Date day, final String userId) {
+        final String formattedDay = formatDay(day);
+        final int shards = userId == null ? SHARD_COUNT : USER_SHARD_COUNT;
+        final List<Key> keys = new ArrayList<Key>(EntityConstants.ScheduledMail.Property.ProcessStatus.ALL_PROCESS_STATUSES.length * shards);
+        final Map<Key, String> statusByKey = new HashMap<Key, String>();
+        final Map<String, Long> totals = new LinkedHashMap<String, Long>();
+        for (final String status : EntityConstants.ScheduledMail.Property.ProcessStatus.ALL_PROCESS_STATUSES) {
+            totals.put(status, 0L);
+            final String counterName = getCounterName(formattedDay, status, userId);
+            for (int shard = 0; shard < shards; shard++) {
+                final Key key = getShardKey(counterName, shard);
+                keys.add(key);
+                statusByKey.put(key, status);
+            }
+        }
+
+        final Map<Key, Entity> shardEntities = ds.get(keys);
+        for (final Entity shard : shardEntities.values()) {
+            final String status = statusByKey.get(shard.getKey());
+            final Long count = (Long) shard.getProperty(EntityConstants.StatusCounterShard.Property.COUNT);
+            totals.put(status, totals.get(status) + (count == null ? 0 : count));
+        }
+        return totals;
+    }
+
+    private static String getCounterName(final String day, final String status, final String userId) {
+        return userId == null ? day + SEPARATOR + status : day + SEPARATOR + status + SEPARATOR + userId;
+    }
+
+    private static Key getShardKey(final String counterName, final int shard) {
+        return KeyFactory.createKey(EntityConstants.StatusCounterShard.NAME, counterName + SEPARATOR + shard);
+    }
+
+    public static String formatDay(final Date date) {
+        final SimpleDateFormat format = new SimpleDateFormat(DAY_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    public static Date parseDay(final String day) throws ParseException {
+        final SimpleDateFormat format = new SimpleDateFormat(DAY_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(day);
+    }
+}
@@ -0,0 +1,132 @@
+package com.feth.mailfred.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Collects work items per owner (user) and hands them out round-robin, so one owner
+ * with a large backlog can't delay the items of everybody else.
+ * <p/>
+ * Each owner gets at most {@code maxPerOwner} items per run - everything beyond that
+ * is counted as deferred and is expected to be picked up by the next run.
+ *
+ * @param <T> the type of the work items
+ */
+public class FairShareQueue<T> implements Iterable<T> {
+
+    private final int maxPerOwner;
+    private final Map<String, Deque<T>> queues = new LinkedHashMap<String, Deque<T>>();
+    private final Map<String, Integer> queueDepths = new LinkedHashMap<String, Integer>();
+    private int size = 0;
+    private int deferred = 0;
+
+    public FairShareQueue(final int maxPerOwner) {
+        if (maxPerOwner < 1) {
+            throw new IllegalArgumentException("maxPerOwner must be at least 1");
+        }
+        this.maxPerOwner = maxPerOwner;
+    }
+
+    /**
+     * Adds an item to the queue of the given owner
+     *
+     * @param owner the owner of the item, e.g. a user ID
+     * @param item  the work item
+     * @return whether the item was queued for this run or deferred because the owner already used up its share
+     */
+    public boolean offer(final String owner, final T item) {
+        final Integer depth = queueDepths.get(owner);
+        queueDepths.put(owner, depth == null ? 1 : depth + 1);
+
+        Deque<T> queue = queues.get(owner);
+        if (queue == null) {
+            queue = new ArrayDeque<T>();
+            queues.put(owner, queue);
+        }
+        if (queue.size() >= maxPerOwner) {
+            deferred++;
+            return false;
+        }
+        queue.add(item);
+        size++;
+        return true;
+    }
+
+    /**
+     * @return the number of items that will be handed out by {@link #iterator()}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of items that exceeded the share of their owner
+     */
+    public int getDeferredCount() {
+        return deferred;
+    }
+
+    public int getOwnerCount() {
+        return queues.size();
+    }
+
+    /**
+     * @return the number of offered items (queued and deferred) per owner
+     */
+    public Map<String, Integer> getQueueDepths() {
+        return Collections.unmodifiableMap(queueDepths);
+    }
+
+    /**
+     * Hands out the queued items, one item per owner in turn.
+     * The order within the queue of a single owner is the order in which the items were offered.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final List<Iterator<T>> ownerIterators = new ArrayList<Iterator<T>>(queues.size());
+        for (final Deque<T> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                ownerIterators.add(queue.iterator());
+            }
+        }
+        return new Iterator<T>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return !ownerIterators.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (ownerIterators.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                if (next >= ownerIterators.size()) {
+                    next = 0;
+                }
+                final Iterator<T> current = ownerIterators.get(next);
+                final T item = current.next();
+                if (current.hasNext()) {
+                    next++;
+                } else {
+                    // the following owner moves up into this slot
+                    ownerIterators.remove(next);
+                }
+                return item;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,167 @@
+package com.feth.mailfred.scheduler;
+
+import com.feth.mailfred.entities.AuthHealthHelper;
+import com.feth.mailfred.entities.EntityHelper;
+import com.feth.mailfred.entities.ProcessingOptionSet;
+import com.feth.mailfred.entities.ScheduleStore;
+import com.feth.mailfred.exceptions.MessageNotFoundException;
+import com.feth.mailfred.scheduler.exceptions.ScheduledLabelWasRemovedException;
+import com.feth.mailfred.scheduler.exceptions.WasAnsweredButNoAnswerOptionWasGivenException;
+import com.feth.mailfred.util.RunSummary;
+import com.feth.mailfred.util.SampledLog;
+import com.google.appengine.api.datastore.Entity;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.feth.mailfred.entities.EntityConstants.ScheduledMail.Property;
+
+/**
+ * Processes due scheduled mails one by one and stores the outcome.
+ * <p/>
+ * An instance caches the {@link Scheduler} and the auth health of every user it has seen,
+ * so it should only live for one processing run. Single mails are only logged as a sample,
+ * the whole run is logged as a summary when the statistics are flushed.
+ * <p/>
+ * An instance is thread safe, so several workers can process the mails of one run.
+ */
+public class MailProcessor {
+
+    private static final Logger log = Logger.getLogger(MailProcessor.class.getName());
+    private static final SampledLog processingLog = new SampledLog(log, "processing.mail");
+
+    private static final String SUMMARY_STATUS_PARKED = "parked";
+    private static final String SUMMARY_STATUS_SKIPPED = "skipped";
+    private static final String SUMMARY_STATUS_FAILED = "failed";
+    /**
+     * Processing a mail takes a few Gmail calls, a claim older than this belongs to a processor that died
+     */
+    private static final long CLAIM_MILLIS = 5 * 60 * 1000;
+
+    public enum Outcome {
+        /**
+         * The mail was processed and its status was stored (which might also be an error status)
+         */
+        PROCESSED,
+        /**
+         * The user revoked our access - the mail stays unprocessed until the user authorizes us again
+         */
+        PARKED,
+        /**
+         * The mail isn't pending anymore or another processor claimed it - it was left alone
+         */
+        SKIPPED,
+        /**
+         * Something went wrong before the mail could be processed - it stays unprocessed
+         */
+        FAILED
+    }
+
+    private final ScheduleStore store;
+    private final String claimant = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, Scheduler> schedulers = new ConcurrentHashMap<String, Scheduler>();
+    private final ConcurrentMap<String, Boolean> revokedUsers = new ConcurrentHashMap<String, Boolean>();
+    private final RunSummary summary = new RunSummary("processing");
+
+    public MailProcessor(final ScheduleStore store) {
+        this.store = store;
+    }
+
+    /**
+     * The auth health of every user is only looked up once per processor
+     *
+     * @return whether the given user revoked our access
+     */
+    public boolean isRevoked(final String userId) {
+        Boolean revoked = revokedUsers.get(userId);
+        if (revoked == null) {
+            revoked = store.isRevoked(userId);
+            revokedUsers.put(userId, revoked);
+        }
+        return revoked;
+    }
+
+    /**
+     * Writes the statistics and logs the summary of all mails processed since the last flush
+     */
+    public void flushStatistics() {
+        store.flushStatistics();
+        synchronized (summary) {
+            summary.log(log);
+        }
+    }
+
+    private void record(final String userId, final String status, final long millis) {
+        synchronized (summary) {
+            summary.record(userId, status, millis);
+        }
+    }
+
+    /**
+     * Claims the mail, processes it in Gmail and stores the outcome
+     *
+     * @param dueMail the mail as returned by the due query, which might be outdated already
+     */
+    public Outcome process(final Entity dueMail) {
+        final long start = System.currentTimeMillis();
+        final String mailId = (String) dueMail.getProperty(Property.MAIL_ID);
+        final String userId = (String) dueMail.getProperty(Property.USER_ID);
+        try {
+            if (isRevoked(userId)) {
+                // parked until the user authorizes us again
+                record(userId, SUMMARY_STATUS_PARKED, 0);
+                return Outcome.PARKED;
+            }
+            final Entity scheduledMail = store.claim(dueMail.getKey(), claimant, new Date(start), new Date(start + CLAIM_MILLIS));
+            if (scheduledMail == null) {
+                record(userId, SUMMARY_STATUS_SKIPPED, System.currentTimeMillis() - start);
+                return Outcome.SKIPPED;
+            }
+            final ProcessingOptionSet processingOptions = EntityHelper.getProcessingOptions(scheduledMail);
+
+            Scheduler s = schedulers.get(userId);
+            if (s == null) {
+                // two workers might both build one for the same user, only one of them is kept
+                schedulers.putIfAbsent(userId, new Scheduler(userId));
+                s = schedulers.get(userId);
+            }
+            final Date now = new Date();
+            String status;
+            try {
+                s.process(mailId, processingOptions);
+                status = Property.ProcessStatus.PROCESSED_CORRECTLY;
+            } catch (WasAnsweredButNoAnswerOptionWasGivenException e) {
+                status = Property.ProcessStatus.ANSWERED;
+            } catch (MessageNotFoundException e) {
+                status = Property.ProcessStatus.NOT_FOUND;
+            } catch (ScheduledLabelWasRemovedException e) {
+                status = Property.ProcessStatus.OUTBOX_LABEL_REMOVED;
+            } catch(Exception e) {
+                if (AuthHealthHelper.isAuthFailure(e)) {
+                    // don't mark the mail as failed, it gets processed once the user authorizes us again
+                    store.markRevoked(userId, e);
+                    revokedUsers.put(userId, true);
+                    record(userId, SUMMARY_STATUS_PARKED, System.currentTimeMillis() - start);
+                    return Outcome.PARKED;
+                }
+                processingLog.error(Level.WARNING, e, "mailId", mailId, "userId", userId, "options", processingOptions);
+                status = Property.ProcessStatus.ERROR;
+            }
+            store.recordResult(scheduledMail, status, now);
+
+            final long millis = System.currentTimeMillis() - start;
+            record(userId, status, millis);
+            processingLog.log("mailId", mailId, "userId", userId, "options", processingOptions, "status", status, "millis", millis);
+            return Outcome.PROCESSED;
+        } catch (final Exception e) {
+            // if there is a problem with one mail, we don't want the others to be affected
+            processingLog.error(Level.SEVERE, e, "mailId", mailId, "userId", userId);
+            record(userId, SUMMARY_STATUS_FAILED, System.currentTimeMillis() - start);
+            return Outcome.FAILED;
+        }
+    }
+}
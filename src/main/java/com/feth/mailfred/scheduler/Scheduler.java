@@ -1,9 +1,10 @@
 package com.feth.mailfred.scheduler;
 
-import com.feth.mailfred.entities.EntityConstants.ScheduledMail.Property.ProcessingOptions;
+import com.feth.mailfred.entities.ProcessingOptionSet;
 import com.feth.mailfred.exceptions.MessageNotFoundException;
 import com.feth.mailfred.scheduler.exceptions.ScheduledLabelWasRemovedException;
 import com.feth.mailfred.scheduler.exceptions.WasAnsweredButNoAnswerOptionWasGivenException;
+import com.feth.mailfred.util.SampledLog;
 import com.feth.mailfred.util.Utils;
 import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
@@ -13,6 +14,7 @@ import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.ListLabelsResponse;
+import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.ModifyMessageRequest;
 import com.google.common.collect.Lists;
@@ -21,34 +23,46 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 public class Scheduler {
 
     private static final Logger log = Logger.getLogger(Scheduler.class.getName());
+    private static final SampledLog reboxLog = new SampledLog(log, "rebox.message");
 
     private static final String BASE_LABEL = "MailFred";
     private static final String SCHEDULED_LABEL = "MailFred/Scheduled";
     public static final String LABEL_ID_UNREAD = "UNREAD";
     public static final String LABEL_ID_STARRED = "STARRED";
     public static final String LABEL_ID_INBOX = "INBOX";
+    private static final long MAX_LIST_RESULTS = 500;
+    /**
+     * We can't change more than X messages at once
+     * see https://developers.google.com/gmail/api/v1/reference/quota
+     */
+    private static final int MAX_MODIFICATIONS_PER_BATCH = 5;
 
     final private Gmail gmail;
     final private String currentUserId;
+    private int reboxedCount = 0;
     private final JsonBatchCallback<Message> bc = new JsonBatchCallback<Message>() {
 
         @Override
         public void onSuccess(Message message, HttpHeaders responseHeaders)
                 throws IOException {
-            log.info(String.format("Moved message '%s' for user %s back into INBOX", message.getId(), getCurrentUserId()));
+            reboxedCount++;
+            reboxLog.log("messageId", message.getId(), "userId", getCurrentUserId());
         }
 
         @Override
         public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
                 throws IOException {
-            log.severe(e.getMessage());
+            log.severe(String.format("Could not move a message of user %s back into INBOX: %s", getCurrentUserId(), e));
         }
     };
 
@@ -170,7 +184,7 @@ public class Scheduler {
         return newLabel;
     }
 
-    public void process(final String mailId, final List<String> options) throws
+    public void process(final String mailId, final ProcessingOptionSet options) throws
             IOException,
             WasAnsweredButNoAnswerOptionWasGivenException,
             MessageNotFoundException,
@@ -182,7 +196,7 @@ public class Scheduler {
             throw new ScheduledLabelWasRemovedException();
         }
 
-        if (options.contains(ProcessingOptions.ONLY_IF_NO_ANSWER)) {
+        if (options.isOnlyIfNoAnswer()) {
             final boolean isLastMessageInThread = isLastMessageInThread(messageToBeProcessed);
             if (!isLastMessageInThread) {
                 throw new WasAnsweredButNoAnswerOptionWasGivenException();
@@ -191,13 +205,13 @@ public class Scheduler {
 
         final List<String> addLabelIds = new ArrayList<String>(4);
         addLabelIds.add(getBaseLabel().getId());
-        if (options.contains(ProcessingOptions.MARK_UNREAD)) {
+        if (options.isMarkUnread()) {
             addLabelIds.add(LABEL_ID_UNREAD);
         }
-        if (options.contains(ProcessingOptions.MOVE_TO_INBOX)) {
+        if (options.isMoveToInbox()) {
             addLabelIds.add(LABEL_ID_INBOX);
         }
-        if (options.contains(ProcessingOptions.STAR)) {
+        if (options.isStar()) {
             addLabelIds.add(LABEL_ID_STARRED);
         }
 
@@ -224,20 +238,37 @@ public class Scheduler {
         return message.getLabelIds().contains(getScheduledLabel().getId());
     }
 
-    public void reboxUnscheduledMessagesWithOutboxLabel(final List<String> scheduledMailIds) throws IOException {
+    /**
+     * @return all messages (only their IDs) which have the scheduled label, over all result pages
+     */
+    public List<Message> getMessagesWithScheduledLabel() throws IOException {
+        final List<Message> messages = new ArrayList<Message>();
+        String pageToken = null;
+        do {
+            final ListMessagesResponse response = gmail().users().messages()
+                    .list(me())
+                    .setLabelIds(Collections.singletonList(getScheduledLabel().getId()))
+                    .setMaxResults(MAX_LIST_RESULTS)
+                    .setFields("messages/id,nextPageToken")
+                    .setPageToken(pageToken)
+                    .setQuotaUser(getCurrentUserId())
+                    .setPrettyPrint(shouldBePretty())
+                    .execute();
+            if (response.getMessages() != null) {
+                messages.addAll(response.getMessages());
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
+        return messages;
+    }
 
-        final List<Message> messagesInOutboxAll = gmail().users().messages()
-                .list(me())
-                .setLabelIds(Collections.singletonList(getScheduledLabel().getId()))
-                .setQuotaUser(getCurrentUserId())
-                .setPrettyPrint(shouldBePretty())
-                .execute().getMessages();
+    public void reboxUnscheduledMessagesWithOutboxLabel(final List<Message> messagesInOutboxAll, final Set<String> scheduledMailIds) throws IOException {
 
         if (messagesInOutboxAll != null && messagesInOutboxAll.size() > 0) {
-            log.info(String.format("Found %d outbox messages", messagesInOutboxAll.size()));
-            // we can't change more than X at once
-            // see https://developers.google.com/gmail/api/v1/reference/quota
-            final List<List<Message>> partitionedMessagesInOutbox = Lists.partition(messagesInOutboxAll, 5);
+            final long start = System.currentTimeMillis();
+            reboxedCount = 0;
+            int unscheduled = 0;
+            final List<List<Message>> partitionedMessagesInOutbox = Lists.partition(messagesInOutboxAll, MAX_MODIFICATIONS_PER_BATCH);
 
             for (final List<Message> messagesInOutbox : partitionedMessagesInOutbox) {
                 final BatchRequest br = gmail().batch();
@@ -257,10 +288,73 @@ public class Scheduler {
                 }
 
                 if (messagesToBeProcessed > 0) {
-                    log.info(String.format("Sending %d messages back into inbox", messagesToBeProcessed));
+                    unscheduled += messagesToBeProcessed;
                     br.execute();
                 }
             }
+            log.info(SampledLog.format("rebox.user",
+                    "userId", getCurrentUserId(),
+                    "outbox", messagesInOutboxAll.size(),
+                    "unscheduled", unscheduled,
+                    "moved", reboxedCount,
+                    "millis", System.currentTimeMillis() - start
+            ));
+        }
+    }
+
+    /**
+     * Removes the scheduled label of the given messages and moves them back into the inbox, with batch requests
+     *
+     * @param results receives per message ID whether its labels were changed, see {@link #modifyMessages}
+     */
+    public void unscheduleMessages(final Collection<String> mailIds, final Map<String, Boolean> results) throws IOException {
+        final ModifyMessageRequest mmr = new ModifyMessageRequest()
+                .setAddLabelIds(Collections.singletonList(LABEL_ID_INBOX))
+                .setRemoveLabelIds(Collections.singletonList(getScheduledLabel().getId()));
+        modifyMessages(mailIds, mmr, results);
+    }
+
+    /**
+     * Makes sure the given messages (still) have the scheduled label, with batch requests
+     *
+     * @param results receives per message ID whether its labels were changed, see {@link #modifyMessages}
+     */
+    public void rescheduleMessages(final Collection<String> mailIds, final Map<String, Boolean> results) throws IOException {
+        final ModifyMessageRequest mmr = new ModifyMessageRequest().setAddLabelIds(
+                Arrays.asList(
+                        getBaseLabel().getId(),
+                        getScheduledLabel().getId()
+                )
+        );
+        modifyMessages(mailIds, mmr, results);
+    }
+
+    /**
+     * The results are filled in as Gmail answers - if a batch fails, they still hold the outcome of the batches
+     * before it, the messages of the failed batch and after it have no result
+     */
+    private void modifyMessages(final Collection<String> mailIds, final ModifyMessageRequest mmr, final Map<String, Boolean> results) throws IOException {
+        for (final List<String> partition : Lists.partition(new ArrayList<String>(mailIds), MAX_MODIFICATIONS_PER_BATCH)) {
+            final BatchRequest br = gmail().batch();
+            for (final String mailId : partition) {
+                gmail().users().messages().modify(me(), mailId, mmr)
+                        .setQuotaUser(getCurrentUserId())
+                        .setPrettyPrint(shouldBePretty())
+                        .queue(br, new JsonBatchCallback<Message>() {
+
+                            @Override
+                            public void onSuccess(Message message, HttpHeaders responseHeaders) {
+                                results.put(mailId, true);
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                                log.warning(String.format("Could not change the labels of message '%s' for user %s: %s", mailId, getCurrentUserId(), e.getMessage()));
+                                results.put(mailId, false);
+                            }
+                        });
+            }
+            br.execute();
         }
     }
 }
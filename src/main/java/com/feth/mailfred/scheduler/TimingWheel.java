@@ -0,0 +1,178 @@
+package com.feth.mailfred.scheduler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel: items are put into slots of {@code tickMillis} on the lowest level,
+ * items further in the future go into the coarser slots of the higher levels and cascade down as the time advances.
+ * Adding, cancelling and firing an item is O(1), independent of the number of items in the wheel.
+ * <p/>
+ * With a slot count of {@code n}, level {@code k} covers {@code tickMillis * n^(k+1)}.
+ * Items beyond the highest level wait in an overflow list until the wheel got close enough.
+ *
+ * @param <T> the type of the items, used as map keys, so they need proper equals/hashCode implementations
+ */
+public class TimingWheel<T> {
+
+    private static class Location {
+        private final int level;
+        private final int slot;
+
+        private Location(final int level, final int slot) {
+            this.level = level;
+            this.slot = slot;
+        }
+    }
+
+    private final long tickMillis;
+    private final int slotCount;
+    private final int levelCount;
+    /**
+     * slots[level][slot] maps an item to its due time
+     */
+    private final List<List<Map<T, Long>>> slots;
+    private final Map<T, Long> overflow = new HashMap<T, Long>();
+    private final Map<T, Location> locations = new HashMap<T, Location>();
+    private final List<T> expired = new ArrayList<T>();
+    private long currentTick;
+
+    /**
+     * @param tickMillis  the resolution of the wheel
+     * @param slotCount   the number of slots per level
+     * @param levelCount  the number of levels
+     * @param startMillis the current time
+     */
+    public TimingWheel(final long tickMillis, final int slotCount, final int levelCount, final long startMillis) {
+        if (tickMillis < 1 || slotCount < 2 || levelCount < 1) {
+            throw new IllegalArgumentException("The wheel needs a positive tick, at least two slots and at least one level");
+        }
+        this.tickMillis = tickMillis;
+        this.slotCount = slotCount;
+        this.levelCount = levelCount;
+        this.currentTick = startMillis / tickMillis;
+        this.slots = new ArrayList<List<Map<T, Long>>>(levelCount);
+        for (int level = 0; level < levelCount; level++) {
+            final List<Map<T, Long>> levelSlots = new ArrayList<Map<T, Long>>(slotCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                levelSlots.add(new LinkedHashMap<T, Long>());
+            }
+            slots.add(levelSlots);
+        }
+    }
+
+    /**
+     * Adds an item or moves it to a new due time.
+     * An item which is already due is handed out by the next call of {@link #advance(long)}.
+     */
+    public synchronized void schedule(final T item, final long dueMillis) {
+        cancel(item);
+        place(item, dueMillis);
+    }
+
+    /**
+     * @return whether the item was in the wheel
+     */
+    public synchronized boolean cancel(final T item) {
+        if (expired.remove(item)) {
+            return true;
+        }
+        if (overflow.remove(item) != null) {
+            return true;
+        }
+        final Location location = locations.remove(item);
+        if (location == null) {
+            return false;
+        }
+        slots.get(location.level).get(location.slot).remove(item);
+        return true;
+    }
+
+    public synchronized boolean contains(final T item) {
+        return locations.containsKey(item) || overflow.containsKey(item) || expired.contains(item);
+    }
+
+    public synchronized int size() {
+        return locations.size() + overflow.size() + expired.size();
+    }
+
+    /**
+     * Moves the wheel to the given time
+     *
+     * @return all items that became due, in the order of their due time (by tick)
+     */
+    public synchronized List<T> advance(final long nowMillis) {
+        final long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade();
+            final Map<T, Long> slot = slots.get(0).get(slotIndex(currentTick, 0));
+            for (final T item : slot.keySet()) {
+                locations.remove(item);
+                expired.add(item);
+            }
+            slot.clear();
+        }
+        final List<T> due = new ArrayList<T>(expired);
+        expired.clear();
+        return due;
+    }
+
+    /**
+     * Whenever a level wrapped around, the next slot of the level above is spread over the levels below
+     */
+    private void cascade() {
+        for (int level = 1; level < levelCount; level++) {
+            if (currentTick % ticksPerSlot(level) != 0) {
+                return;
+            }
+            final Map<T, Long> slot = slots.get(level).get(slotIndex(currentTick, level));
+            final Map<T, Long> items = new LinkedHashMap<T, Long>(slot);
+            slot.clear();
+            for (final Map.Entry<T, Long> item : items.entrySet()) {
+                locations.remove(item.getKey());
+                place(item.getKey(), item.getValue());
+            }
+        }
+        if (currentTick % ticksPerSlot(levelCount) == 0 && !overflow.isEmpty()) {
+            final Map<T, Long> items = new LinkedHashMap<T, Long>(overflow);
+            overflow.clear();
+            for (final Map.Entry<T, Long> item : items.entrySet()) {
+                place(item.getKey(), item.getValue());
+            }
+        }
+    }
+
+    private void place(final T item, final long dueMillis) {
+        final long dueTick = dueMillis / tickMillis;
+        final long delta = dueTick - currentTick;
+        if (delta <= 0) {
+            expired.add(item);
+            return;
+        }
+        for (int level = 0; level < levelCount; level++) {
+            if (delta < ticksPerSlot(level + 1)) {
+                final int slot = slotIndex(dueTick, level);
+                slots.get(level).get(slot).put(item, dueMillis);
+                locations.put(item, new Location(level, slot));
+                return;
+            }
+        }
+        overflow.put(item, dueMillis);
+    }
+
+    private long ticksPerSlot(final int level) {
+        long ticks = 1;
+        for (int i = 0; i < level; i++) {
+            ticks *= slotCount;
+        }
+        return ticks;
+    }
+
+    private int slotIndex(final long tick, final int level) {
+        return (int) ((tick / ticksPerSlot(level)) % slotCount);
+    }
+}
@@ -0,0 +1,466 @@
+package com.feth.mailfred.scheduler;
+
+import com.feth.mailfred.entities.DatastoreScheduleStore;
+import com.feth.mailfred.entities.EntityConstants;
+import com.feth.mailfred.entities.EntityHelper;
+import com.feth.mailfred.entities.ScheduleStore;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Fires scheduled mails at their due time from an in-memory {@link TimingWheel}, meant to run on the
+ * "dispatcher" backend (see backends.xml).
+ * <p/>
+ * The wheel holds the next {@link #WINDOW_MILLIS} of pending mails and is refilled incrementally, so the Datastore
+ * is queried once per refill instead of once per tick. Mails scheduled or cancelled in between arrive through the
+ * pull queue {@link #NOTIFICATION_QUEUE}, see {@link #notify(Transaction, Map, Collection)}.
+ * <p/>
+ * Only the holder of the {@link EntityConstants.WheelLease} fires mails. If the holder dies, the lease expires and the
+ * next dispatcher loads the wheel from scratch - leased notifications of the dead one become available again.
+ * Mails are claimed before processing (see {@link MailProcessor}), so a mail is never processed by the dispatcher
+ * and the cron run at the same time.
+ * <p/>
+ * The tick thread only keeps the wheel and the lease up to date. Fired mails are handed to {@link #WORKER_THREADS}
+ * workers in batches, which interleave the users like the cron run does (see {@link FairShareQueue}) - so a burst of
+ * due mails neither delays the ticks nor the renewal of the lease.
+ */
+public class WheelDispatcher implements Runnable {
+
+    private static final Logger log = Logger.getLogger(WheelDispatcher.class.getName());
+
+    public static final String ENABLED_PROPERTY = "mailfred.wheel.enabled";
+    public static final String NOTIFICATION_QUEUE = "wheel-notifications";
+    /**
+     * With the dispatcher enabled, the cron run only processes mails which are overdue by at least this much
+     */
+    public static final long CRON_GRACE_MILLIS = 2 * 60 * 1000;
+
+    private static final String PARAMETER_SCHEDULE = "schedule";
+    private static final String PARAMETER_CANCEL = "cancel";
+    private static final String SCHEDULE_SEPARATOR = "|";
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 64;
+    private static final int WHEEL_LEVELS = 3;
+    private static final long WINDOW_MILLIS = 10 * 60 * 1000;
+    private static final long REFILL_INTERVAL_MILLIS = WINDOW_MILLIS / 2;
+    private static final long LEASE_MILLIS = 60 * 1000;
+    private static final int NOTIFICATION_POLL_TICKS = 5;
+    private static final int NOTIFICATION_BATCH_SIZE = 100;
+    private static final int REFILL_BATCH_SIZE = 500;
+    private static final int MAX_LOADED_MAILS = 50000;
+    private static final int STATISTICS_FLUSH_TICKS = 60;
+    private static final int WORKER_THREADS = 10;
+    /**
+     * The size of a batch get, the rest of the fired mails waits for the next batch
+     */
+    private static final int MAX_MAILS_PER_BATCH = 500;
+    /**
+     * How many mails of a single user go into one batch - the rest waits for the next batch
+     */
+    private static final int MAX_MAILS_PER_USER_PER_BATCH = 10;
+
+    /**
+     * The fired mails of a batch, in the order of the {@link FairShareQueue}, and the processor for them
+     */
+    private static class Batch {
+        private final Iterator<Entity> mails;
+        private final MailProcessor processor;
+
+        private Batch(final Iterator<Entity> mails, final MailProcessor processor) {
+            this.mails = mails;
+            this.processor = processor;
+        }
+    }
+
+    private final DatastoreService ds;
+    private final ScheduleStore store;
+    private final String owner = UUID.randomUUID().toString();
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, ThreadManager.backgroundThreadFactory());
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private volatile boolean running = true;
+
+    private TimingWheel<Key> wheel = null;
+    private MailProcessor processor = null;
+    private long leaseExpiresAt = 0;
+    /**
+     * All pending mails due before this are in the wheel, later ones are added by the refill
+     */
+    private Date loadedUntil = null;
+    /**
+     * A refill that stopped because the wheel was full continues with this query at this cursor
+     */
+    private Query refillQuery = null;
+    private Cursor refillCursor = null;
+    private Date refillUntil = null;
+    private long nextRefill = 0;
+    private long ticks = 0;
+    /**
+     * Mails the wheel fired which are not handed to the workers yet
+     */
+    private final List<Key> fired = new ArrayList<Key>();
+    /**
+     * Shared by the workers, guarded by {@link #batchLock}
+     */
+    private Batch batch = null;
+    private final Object batchLock = new Object();
+
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Batch current;
+                    final Entity scheduledMail;
+                    synchronized (batchLock) {
+                        if (batch == null || !batch.mails.hasNext()) {
+                            return;
+                        }
+                        current = batch;
+                        scheduledMail = batch.mails.next();
+                    }
+                    current.processor.process(scheduledMail);
+                }
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+        }
+    };
+
+    public WheelDispatcher(final DatastoreService ds) {
+        this.ds = ds;
+        this.store = new DatastoreScheduleStore(ds, DatastoreServiceFactory.getAsyncDatastoreService());
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * Tells the dispatcher about new schedules and the schedules they replaced.
+     * The notification is a single task which is added transactionally, so it only exists if the schedules were stored.
+     *
+     * @param scheduled the keys of the new schedules and their due times
+     * @param cancelled the keys of the cancelled schedules
+     */
+    public static void notify(final Transaction txn, final Map<Key, Date> scheduled, final Collection<Key> cancelled) {
+        if (!isEnabled() || (scheduled.isEmpty() && cancelled.isEmpty())) {
+            return;
+        }
+        final TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL);
+        for (final Map.Entry<Key, Date> schedule : scheduled.entrySet()) {
+            task.param(PARAMETER_SCHEDULE, KeyFactory.keyToString(schedule.getKey()) + SCHEDULE_SEPARATOR + schedule.getValue().getTime());
+        }
+        for (final Key key : cancelled) {
+            task.param(PARAMETER_CANCEL, KeyFactory.keyToString(key));
+        }
+        QueueFactory.getQueue(NOTIFICATION_QUEUE).add(txn, task);
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        log.info(String.format("Dispatcher %s started", owner));
+        while (running) {
+            final long tickStart = System.currentTimeMillis();
+            try {
+                tick(tickStart);
+            } catch (final Exception e) {
+                // the next tick tries again, if we lost the lease in the meantime somebody else takes over
+                log.severe(e.getMessage());
+            }
+            final long sleep = TICK_MILLIS - (System.currentTimeMillis() - tickStart);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+        }
+        releaseLease();
+        // the workers finish the mail at hand, the claims of the rest expire
+        workers.shutdown();
+        log.info(String.format("Dispatcher %s stopped", owner));
+    }
+
+    private void tick(final long now) throws Exception {
+        if (!holdLease(now)) {
+            return;
+        }
+        if (now >= nextRefill) {
+            refill(now);
+        }
+        if (ticks++ % NOTIFICATION_POLL_TICKS == 0) {
+            applyNotifications();
+        }
+        fired.addAll(wheel.advance(now));
+        dispatch();
+        if (ticks % STATISTICS_FLUSH_TICKS == 0) {
+            processor.flushStatistics();
+        }
+    }
+
+    /**
+     * Acquires or renews the lease
+     *
+     * @return whether this dispatcher holds the lease
+     */
+    private boolean holdLease(final long now) {
+        if (wheel != null && leaseExpiresAt - now > LEASE_MILLIS / 2) {
+            return true;
+        }
+        final Key leaseKey = KeyFactory.createKey(EntityConstants.WheelLease.NAME, EntityConstants.WheelLease.NAME);
+        final Transaction txn = ds.beginTransaction();
+        try {
+            Entity lease;
+            try {
+                lease = ds.get(txn, leaseKey);
+                final String currentOwner = (String) lease.getProperty(EntityConstants.WheelLease.Property.OWNER);
+                final Date expiresAt = (Date) lease.getProperty(EntityConstants.WheelLease.Property.EXPIRES_AT);
+                if (!owner.equals(currentOwner) && expiresAt != null && expiresAt.getTime() > now) {
+                    dropWheel();
+                    return false;
+                }
+            } catch (EntityNotFoundException e) {
+                lease = new Entity(leaseKey);
+            }
+            lease.setUnindexedProperty(EntityConstants.WheelLease.Property.OWNER, owner);
+            lease.setUnindexedProperty(EntityConstants.WheelLease.Property.EXPIRES_AT, new Date(now + LEASE_MILLIS));
+            ds.put(txn, lease);
+            txn.commit();
+        } catch (ConcurrentModificationException e) {
+            dropWheel();
+            return false;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+        leaseExpiresAt = now + LEASE_MILLIS;
+        if (wheel == null) {
+            log.info(String.format("Dispatcher %s acquired the lease", owner));
+            wheel = new TimingWheel<Key>(TICK_MILLIS, WHEEL_SLOTS, WHEEL_LEVELS, now);
+            loadedUntil = null;
+            nextRefill = now;
+        }
+        return true;
+    }
+
+    private void releaseLease() {
+        if (wheel == null) {
+            return;
+        }
+        final Key leaseKey = KeyFactory.createKey(EntityConstants.WheelLease.NAME, EntityConstants.WheelLease.NAME);
+        final Transaction txn = ds.beginTransaction();
+        try {
+            final Entity lease = ds.get(txn, leaseKey);
+            if (owner.equals(lease.getProperty(EntityConstants.WheelLease.Property.OWNER))) {
+                lease.setUnindexedProperty(EntityConstants.WheelLease.Property.EXPIRES_AT, new Date());
+                ds.put(txn, lease);
+                txn.commit();
+            }
+        } catch (final Exception e) {
+            // the lease expires on its own
+            log.warning(e.getMessage());
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+        dropWheel();
+    }
+
+    private void dropWheel() {
+        if (wheel != null) {
+            log.info(String.format("Dispatcher %s lost the lease, dropping %d mails", owner, wheel.size()));
+        }
+        if (processor != null) {
+            processor.flushStatistics();
+        }
+        synchronized (batchLock) {
+            batch = null;
+        }
+        fired.clear();
+        wheel = null;
+        processor = null;
+        loadedUntil = null;
+        refillQuery = null;
+        refillCursor = null;
+        refillUntil = null;
+    }
+
+    /**
+     * Loads all pending mails due before the end of the next window which are not in the wheel yet.
+     * The first refill also loads everything that is already overdue.
+     * <p/>
+     * If the wheel is full, the refill stops and the next one continues at the cursor of the same query,
+     * so it makes progress even if more than a batch of mails are due at the same time.
+     */
+    private void refill(final long now) {
+        if (refillQuery == null) {
+            refillUntil = new Date(now + WINDOW_MILLIS);
+            refillQuery = createRefillQuery(loadedUntil, refillUntil);
+            refillCursor = null;
+        }
+
+        final FetchOptions fetchOptions = FetchOptions.Builder.withLimit(REFILL_BATCH_SIZE).chunkSize(REFILL_BATCH_SIZE);
+        int loaded = 0;
+        boolean complete = false;
+        // fired mails which wait for the workers count as loaded, so a backlog doesn't grow without a bound
+        while (wheel.size() + fired.size() < MAX_LOADED_MAILS) {
+            if (refillCursor != null) {
+                fetchOptions.startCursor(refillCursor);
+            }
+            final QueryResultList<Entity> batch = ds.prepare(refillQuery).asQueryResultList(fetchOptions);
+            Date lastDue = null;
+            for (final Entity scheduledMail : batch) {
+                lastDue = (Date) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR);
+                wheel.schedule(scheduledMail.getKey(), lastDue.getTime());
+                loaded++;
+            }
+            refillCursor = batch.getCursor();
+            if (batch.size() < REFILL_BATCH_SIZE) {
+                complete = true;
+                break;
+            }
+            // notifications up to the last loaded due time go into the wheel, a mail at the cursor might be added twice
+            loadedUntil = new Date(lastDue.getTime() + 1);
+        }
+
+        if (complete) {
+            loadedUntil = refillUntil;
+            refillQuery = null;
+            refillCursor = null;
+            nextRefill = now + REFILL_INTERVAL_MILLIS;
+        } else {
+            nextRefill = now + TICK_MILLIS * NOTIFICATION_POLL_TICKS;
+        }
+        if (processor == null || complete) {
+            if (processor != null) {
+                processor.flushStatistics();
+            }
+            processor = new MailProcessor(store);
+        }
+        log.info(String.format("Loaded %d mails due until %s, %d mails in the wheel%s",
+                loaded, loadedUntil, wheel.size(), complete ? "" : ", the wheel is full"));
+    }
+
+    /**
+     * @param from  the due time to start at, null to load the overdue mails as well
+     * @param until the end of the window
+     */
+    private static Query createRefillQuery(final Date from, final Date until) {
+        Query.Filter filter = Query.CompositeFilterOperator.and(
+                EntityHelper.getDueFilter(),
+                new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, Query.FilterOperator.LESS_THAN, until)
+        );
+        if (from != null) {
+            filter = Query.CompositeFilterOperator.and(
+                    filter,
+                    new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, Query.FilterOperator.GREATER_THAN_OR_EQUAL, from)
+            );
+        }
+        // only the due time is needed, the mail itself is read when it fires
+        return new Query(EntityConstants.ScheduledMail.NAME)
+                .setFilter(filter)
+                .addSort(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR)
+                .addProjection(new PropertyProjection(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, Date.class));
+    }
+
+    private void applyNotifications() throws Exception {
+        final Queue queue = QueueFactory.getQueue(NOTIFICATION_QUEUE);
+        final List<TaskHandle> tasks = queue.leaseTasks(LEASE_MILLIS, TimeUnit.MILLISECONDS, NOTIFICATION_BATCH_SIZE);
+        if (tasks.isEmpty()) {
+            return;
+        }
+        for (final TaskHandle task : tasks) {
+            for (final Map.Entry<String, String> param : task.extractParams()) {
+                if (PARAMETER_CANCEL.equals(param.getKey())) {
+                    wheel.cancel(KeyFactory.stringToKey(param.getValue()));
+                } else if (PARAMETER_SCHEDULE.equals(param.getKey())) {
+                    final String schedule = param.getValue();
+                    final int separator = schedule.lastIndexOf(SCHEDULE_SEPARATOR);
+                    final Key key = KeyFactory.stringToKey(schedule.substring(0, separator));
+                    final long scheduledFor = Long.parseLong(schedule.substring(separator + 1));
+                    // everything after the loaded window is picked up by the next refill
+                    if (loadedUntil != null && scheduledFor < loadedUntil.getTime()) {
+                        wheel.schedule(key, scheduledFor);
+                    }
+                }
+            }
+        }
+        queue.deleteTask(tasks);
+    }
+
+    /**
+     * Hands the next batch of fired mails to the workers once they are through with the current one
+     * and makes sure enough workers are running
+     */
+    private void dispatch() {
+        boolean pending;
+        synchronized (batchLock) {
+            pending = batch != null && batch.mails.hasNext();
+        }
+        if (!pending && !fired.isEmpty()) {
+            final List<Key> keys = fired.subList(0, Math.min(fired.size(), MAX_MAILS_PER_BATCH));
+            final Map<Key, Entity> scheduledMails = ds.get(keys);
+            final FairShareQueue<Entity> queue = new FairShareQueue<Entity>(MAX_MAILS_PER_USER_PER_BATCH);
+            final List<Key> deferred = new ArrayList<Key>();
+            for (final Key key : keys) {
+                final Entity scheduledMail = scheduledMails.get(key);
+                // it might have been cancelled or handled by the cron run in the meantime, the processor claims it to be sure
+                if (scheduledMail == null
+                        || Boolean.TRUE.equals(scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED))) {
+                    continue;
+                }
+                if (!queue.offer((String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.USER_ID), scheduledMail)) {
+                    deferred.add(key);
+                }
+            }
+            keys.clear();
+            fired.addAll(0, deferred);
+            synchronized (batchLock) {
+                batch = new Batch(queue.iterator(), processor);
+            }
+            pending = queue.size() > 0;
+        }
+        // workers which ran out of mails are gone, start as many as are missing
+        while (pending && activeWorkers.get() < WORKER_THREADS) {
+            activeWorkers.incrementAndGet();
+            workers.execute(worker);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.AuthHealthHelper;
+import com.feth.mailfred.exceptions.NoScheduleTimeException;
+import com.feth.mailfred.scheduler.Scheduler;
+import com.feth.mailfred.util.Utils;
+import com.google.appengine.api.users.UserServiceFactory;
+import org.json.JSONObject;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Cancels or moves many pending schedules of the current user at once.
+ * <p/>
+ * The schedules are changed first (in cross group transactions), afterwards the labels of the changed messages
+ * are updated with Gmail batch requests. The response holds a result per given message ID.
+ */
+public class BatchScheduleServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(BatchScheduleServlet.class.getName());
+
+    public static final String PARAMETER_ACTION = "action";
+    public static final String PARAMETER_ACTION_VALUE_CANCEL = "cancel";
+    public static final String PARAMETER_ACTION_VALUE_RESCHEDULE = "reschedule";
+
+    public static final String ERROR_CODE_INVALID_ACTION = "InvalidAction";
+    public static final String ERROR_CODE_TOO_MANY_MESSAGES = "TooManyMessages";
+
+    public static final String RESULT_CANCELED = "canceled";
+    public static final String RESULT_RESCHEDULED = "rescheduled";
+    public static final String RESULT_NOT_SCHEDULED = "notScheduled";
+    public static final String RESULT_MESSAGE_ID_INVALID = "messageIdInvalid";
+    public static final String RESULT_STORING_FAILED = "storingFailed";
+    /**
+     * The schedule was changed, but the labels of the message could not be updated
+     */
+    public static final String RESULT_LABEL_FAILED = "labelFailed";
+
+    private static final int MAX_MESSAGES_PER_REQUEST = 100;
+
+    @Override
+    protected void doOptions(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.addHeader("Access-Control-Allow-Origin", "*");
+    }
+
+    @Override
+    public void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final Date now = new Date();
+        final String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
+
+        resp.addHeader("Access-Control-Allow-Origin", "*");
+        resp.setContentType("application/json");
+        final JSONObject response = new JSONObject();
+        response.put("success", false);
+        response.put("error", "Unknown error occurred");
+
+        if (Utils.getScheduleStore().isRevoked(userId)) {
+            writeError(resp, response, ScheduleServlet.ERROR_CODE_AUTH_MISSING);
+            return;
+        }
+
+        final String action = req.getParameter(PARAMETER_ACTION);
+        final boolean reschedule = PARAMETER_ACTION_VALUE_RESCHEDULE.equals(action);
+        if (!reschedule && !PARAMETER_ACTION_VALUE_CANCEL.equals(action)) {
+            writeError(resp, response, ERROR_CODE_INVALID_ACTION);
+            return;
+        }
+
+        Date scheduleAt = null;
+        if (reschedule) {
+            try {
+                final Long when = ScheduleServlet.getWhenTheMailShouldBeScheduledFromRequest(req, now);
+                if (when == null) {
+                    writeError(resp, response, ScheduleServlet.ERROR_CODE_INVALID_SCHEDULE_TIME);
+                    return;
+                }
+                scheduleAt = new Date(when);
+            } catch (NoScheduleTimeException e) {
+                writeError(resp, response, ScheduleServlet.ERROR_CODE_NO_SCHEDULE_TIME);
+                return;
+            }
+        }
+
+        final String[] mailIdParameters = req.getParameterValues(ScheduleServlet.PARAMETER_MESSAGE_ID);
+        if (mailIdParameters == null || mailIdParameters.length == 0) {
+            writeError(resp, response, ScheduleServlet.ERROR_CODE_MESSAGE_ID_INVALID);
+            return;
+        }
+        if (mailIdParameters.length > MAX_MESSAGES_PER_REQUEST) {
+            writeError(resp, response, ERROR_CODE_TOO_MANY_MESSAGES);
+            return;
+        }
+
+        final Map<String, String> results = new LinkedHashMap<String, String>();
+        final Set<String> mailIds = new LinkedHashSet<String>();
+        for (final String mailId : mailIdParameters) {
+            if (Scheduler.isValidMessageId(mailId)) {
+                mailIds.add(mailId);
+                results.put(mailId, RESULT_NOT_SCHEDULED);
+            } else {
+                results.put(mailId, RESULT_MESSAGE_ID_INVALID);
+            }
+        }
+
+        log.info(String.format("User %s told us to %s %d mails at once", userId, action, mailIds.size()));
+
+        try {
+            final Map<String, Boolean> stored = reschedule ?
+                    Utils.getScheduleStore().reschedule(now, userId, mailIds, scheduleAt) :
+                    Utils.getScheduleStore().cancel(now, userId, mailIds);
+
+            final List<String> changed = new ArrayList<String>(stored.size());
+            for (final Map.Entry<String, Boolean> mail : stored.entrySet()) {
+                if (mail.getValue()) {
+                    changed.add(mail.getKey());
+                } else {
+                    results.put(mail.getKey(), RESULT_STORING_FAILED);
+                }
+            }
+
+            if (!changed.isEmpty()) {
+                final Map<String, Boolean> labelled = updateLabels(userId, changed, reschedule);
+                for (final String mailId : changed) {
+                    if (Boolean.TRUE.equals(labelled.get(mailId))) {
+                        results.put(mailId, reschedule ? RESULT_RESCHEDULED : RESULT_CANCELED);
+                    } else {
+                        results.put(mailId, RESULT_LABEL_FAILED);
+                    }
+                }
+            }
+
+            response.put("success", true);
+            response.put("error", false);
+        } catch (final Throwable e) {
+            log.severe(e.getMessage());
+            e.printStackTrace();
+        }
+        response.put("results", results);
+        response.write(resp.getWriter());
+    }
+
+    /**
+     * The schedules are already changed at this point, so a failing label update must not fail the whole request.
+     * Messages which keep a stale scheduled label are moved back into the inbox on the next authorization.
+     *
+     * @return per message ID whether its labels were changed - if a Gmail batch failed, the messages of the batches
+     * before it keep their result and the rest has none
+     */
+    private static Map<String, Boolean> updateLabels(final String userId, final List<String> mailIds, final boolean reschedule) {
+        final Map<String, Boolean> labelled = new HashMap<String, Boolean>();
+        try {
+            final Scheduler scheduler = new Scheduler(userId);
+            if (reschedule) {
+                scheduler.rescheduleMessages(mailIds, labelled);
+            } else {
+                scheduler.unscheduleMessages(mailIds, labelled);
+            }
+        } catch (final IOException e) {
+            if (AuthHealthHelper.isAuthFailure(e)) {
+                Utils.getScheduleStore().markRevoked(userId, e);
+            } else {
+                log.severe(e.getMessage());
+            }
+        }
+        return labelled;
+    }
+
+    private static void writeError(final HttpServletResponse resp, final JSONObject response, final String code) throws IOException {
+        final JSONObject error = new JSONObject();
+        error.put("code", code);
+        response.put("error", error);
+        response.write(resp.getWriter());
+    }
+}
@@ -0,0 +1,39 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.scheduler.WheelDispatcher;
+import com.google.appengine.api.LifecycleManager;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Handles /_ah/start, which App Engine only sends to backend instances:
+ * starts the {@link WheelDispatcher} in a background thread if it is enabled.
+ */
+public class DispatcherStartServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(DispatcherStartServlet.class.getName());
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        if (!WheelDispatcher.isEnabled()) {
+            log.info(String.format("Dispatcher is disabled, set %s to true to enable it", WheelDispatcher.ENABLED_PROPERTY));
+            return;
+        }
+
+        final WheelDispatcher dispatcher = new WheelDispatcher(DatastoreServiceFactory.getDatastoreService());
+        LifecycleManager.getInstance().setShutdownHook(new LifecycleManager.ShutdownHook() {
+            @Override
+            public void shutdown() {
+                dispatcher.stop();
+            }
+        });
+        ThreadManager.createBackgroundThread(dispatcher).start();
+    }
+}
@@ -0,0 +1,138 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.EntityConstants;
+import com.feth.mailfred.entities.ScheduledMailJson;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Charsets;
+import org.json.JSONObject;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.logging.Logger;
+
+/**
+ * Streams scheduled mails as NDJSON (one JSON object per line), optionally filtered by user, status
+ * and a range of the due time (milliseconds since the epoch).
+ * <p/>
+ * The entities are read batch by batch (the query iterator continues with cursors). App Engine buffers the whole
+ * response before sending it and rejects responses over 32 MB, so an export ends after {@link #MAX_RESPONSE_BYTES},
+ * the given limit or the time budget, whatever comes first. The last line is then a {@code {"cursor": "..."}} record
+ * to continue with in the next request - the importer skips it.
+ */
+public class ExportServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(ExportServlet.class.getName());
+
+    public static final String PARAMETER_USER_ID = "userId";
+    public static final String PARAMETER_STATUS = "status";
+    public static final String PARAMETER_FROM = "from";
+    public static final String PARAMETER_TO = "to";
+    public static final String PARAMETER_CURSOR = "cursor";
+    public static final String PARAMETER_LIMIT = "limit";
+
+    public static final String FIELD_CURSOR = "cursor";
+
+    private static final int BATCH_SIZE = 500;
+    /**
+     * Leaves some headroom to the request deadline for the cursor record
+     */
+    private static final long TIME_BUDGET_MILLIS = 50 * 1000;
+    /**
+     * Stays well below the 32 MB response limit: a single entity (at most 1 MB) and the cursor record still fit
+     */
+    private static final long MAX_RESPONSE_BYTES = 24 * 1024 * 1024;
+
+    private final long maxResponseBytes;
+
+    public ExportServlet() {
+        this(MAX_RESPONSE_BYTES);
+    }
+
+    /**
+     * @param maxResponseBytes lets tests page through an export without building responses of 24 MB
+     */
+    ExportServlet(final long maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        final Date from;
+        final Date to;
+        final long limit;
+        try {
+            from = getDateParameter(req, PARAMETER_FROM);
+            to = getDateParameter(req, PARAMETER_TO);
+            limit = req.getParameter(PARAMETER_LIMIT) == null ? Long.MAX_VALUE : Long.parseLong(req.getParameter(PARAMETER_LIMIT));
+        } catch (final NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "from, to and limit must be numbers");
+            return;
+        }
+        final String userId = req.getParameter(PARAMETER_USER_ID);
+        final String status = req.getParameter(PARAMETER_STATUS);
+        final String webSafeCursor = req.getParameter(PARAMETER_CURSOR);
+
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        final Query q = ScheduledMailJson.buildQuery(userId, status, from, to);
+        final FetchOptions fetchOptions = FetchOptions.Builder.withChunkSize(BATCH_SIZE).prefetchSize(BATCH_SIZE);
+        if (webSafeCursor != null) {
+            fetchOptions.startCursor(Cursor.fromWebSafeString(webSafeCursor));
+        }
+
+        resp.setContentType("application/x-ndjson");
+        resp.setCharacterEncoding("UTF-8");
+        final Writer writer = resp.getWriter();
+
+        final long start = System.currentTimeMillis();
+        long exported = 0;
+        long bytes = 0;
+        // the iterator fetches the next batch with its cursor whenever the current one is used up
+        final QueryResultIterator<Entity> it = ds.prepare(q).asQueryResultIterator(fetchOptions);
+        while (it.hasNext()) {
+            final String line = ScheduledMailJson.toJson(it.next()).toString();
+            writer.write(line);
+            writer.write('\n');
+            exported++;
+            bytes += line.getBytes(Charsets.UTF_8).length + 1;
+
+            if (exported >= limit
+                    || bytes >= maxResponseBytes
+                    || (exported % BATCH_SIZE == 0 && System.currentTimeMillis() - start > TIME_BUDGET_MILLIS)) {
+                if (it.hasNext()) {
+                    final JSONObject cursor = new JSONObject();
+                    cursor.put(FIELD_CURSOR, it.getCursor().toWebSafeString());
+                    writer.write(cursor.toString());
+                    writer.write('\n');
+                }
+                break;
+            }
+        }
+        writer.flush();
+
+        final long millis = Math.max(1, System.currentTimeMillis() - start);
+        log.info(String.format(
+                "Exported %d %s entities (%d bytes) in %d ms (%.0f entities/s)",
+                exported,
+                EntityConstants.ScheduledMail.NAME,
+                bytes,
+                millis,
+                exported * 1000d / millis
+        ));
+    }
+
+    private static Date getDateParameter(final HttpServletRequest req, final String name) {
+        final String value = req.getParameter(name);
+        return value == null ? null : new Date(Long.parseLong(value));
+    }
+}
@@ -0,0 +1,175 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.EntityConstants;
+import com.feth.mailfred.entities.ScheduledMailJson;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Reads scheduled mails as NDJSON (as written by {@link ExportServlet}) from the request body and stores them
+ * with batched asynchronous puts.
+ * <p/>
+ * Only a few batches are in flight at once: if the Datastore can't keep up, reading the request waits
+ * for the oldest put, so the memory used doesn't depend on the size of the import.
+ * The pending schedules cache and the dispatcher pick up imported mails when they reload from the Datastore.
+ * <p/>
+ * Kept IDs are reserved before they are put, so the ID allocator of the target app never hands them out again
+ * for new mails (which would overwrite the imported ones).
+ * <p/>
+ * The statistics of /admin/stats are not part of an export: they count outcomes when mails are processed, so after
+ * a restore into another app they only cover the mails processed there.
+ */
+public class ImportServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(ImportServlet.class.getName());
+
+    /**
+     * Set to false to give the entities new IDs instead of the exported ones
+     */
+    public static final String PARAMETER_KEEP_IDS = "keepIds";
+
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_PUTS_IN_FLIGHT = 4;
+
+    private static class PendingPut {
+        private final Future<List<Key>> future;
+        private final int size;
+
+        private PendingPut(final Future<List<Key>> future, final int size) {
+            this.future = future;
+            this.size = size;
+        }
+    }
+
+    private static class ImportStats {
+        private long imported = 0;
+        private long invalid = 0;
+        private long failed = 0;
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        final boolean keepIds = !"false".equals(req.getParameter(PARAMETER_KEEP_IDS));
+        final AsyncDatastoreService ds = DatastoreServiceFactory.getAsyncDatastoreService();
+        final DatastoreService syncDs = DatastoreServiceFactory.getDatastoreService();
+        final LinkedList<PendingPut> inFlight = new LinkedList<PendingPut>();
+        final ImportStats stats = new ImportStats();
+
+        final long start = System.currentTimeMillis();
+        final BufferedReader reader = req.getReader();
+        List<Entity> batch = new ArrayList<Entity>(BATCH_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                final JSONObject json = new JSONObject(line);
+                if (!json.has(EntityConstants.ScheduledMail.Property.MAIL_ID)) {
+                    // the cursor record of a partial export
+                    continue;
+                }
+                batch.add(ScheduledMailJson.fromJson(json, keepIds));
+            } catch (final JSONException e) {
+                stats.invalid++;
+                continue;
+            }
+
+            if (batch.size() == BATCH_SIZE) {
+                if (inFlight.size() == MAX_PUTS_IN_FLIGHT) {
+                    awaitPut(inFlight.removeFirst(), stats);
+                }
+                put(ds, syncDs, batch, keepIds, inFlight, stats);
+                batch = new ArrayList<Entity>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            put(ds, syncDs, batch, keepIds, inFlight, stats);
+        }
+        while (!inFlight.isEmpty()) {
+            awaitPut(inFlight.removeFirst(), stats);
+        }
+
+        final long millis = Math.max(1, System.currentTimeMillis() - start);
+        final double entitiesPerSecond = stats.imported * 1000d / millis;
+        log.info(String.format(
+                "Imported %d %s entities in %d ms (%.0f entities/s), %d invalid lines, %d failed",
+                stats.imported,
+                EntityConstants.ScheduledMail.NAME,
+                millis,
+                entitiesPerSecond,
+                stats.invalid,
+                stats.failed
+        ));
+
+        resp.setContentType("application/json");
+        final JSONObject response = new JSONObject();
+        response.put("success", stats.invalid == 0 && stats.failed == 0);
+        response.put("error", false);
+        response.put("imported", stats.imported);
+        response.put("invalid", stats.invalid);
+        response.put("failed", stats.failed);
+        response.put("millis", millis);
+        response.put("entitiesPerSecond", Math.round(entitiesPerSecond));
+        response.write(resp.getWriter());
+    }
+
+    private static void put(final AsyncDatastoreService ds, final DatastoreService syncDs, final List<Entity> batch,
+                            final boolean keepIds, final List<PendingPut> inFlight, final ImportStats stats) {
+        if (keepIds) {
+            try {
+                reserveIds(syncDs, batch);
+            } catch (final Exception e) {
+                // without the reservation a new mail could overwrite an imported one later on
+                log.severe(e.getMessage());
+                stats.failed += batch.size();
+                return;
+            }
+        }
+        inFlight.add(new PendingPut(ds.put(batch), batch.size()));
+    }
+
+    /**
+     * Reserves the range from the lowest to the highest ID of the batch. An unfiltered export is in key order, so the
+     * IDs of a batch are close to each other - otherwise the range is wider, which only leaves some IDs unused.
+     */
+    private static void reserveIds(final DatastoreService ds, final List<Entity> batch) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (final Entity scheduledMail : batch) {
+            final long id = scheduledMail.getKey().getId();
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+        ds.allocateIdRange(new KeyRange(null, EntityConstants.ScheduledMail.NAME, min, max));
+    }
+
+    private static void awaitPut(final PendingPut put, final ImportStats stats) {
+        try {
+            put.future.get();
+            stats.imported += put.size;
+        } catch (final Exception e) {
+            // a failed batch can simply be imported again, the puts are idempotent with kept IDs
+            log.severe(e.getMessage());
+            stats.failed += put.size;
+        }
+    }
+}
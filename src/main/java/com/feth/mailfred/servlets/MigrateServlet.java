@@ -0,0 +1,144 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.EntityConstants;
+import com.feth.mailfred.entities.EntityHelper;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Migrates all scheduled mails to {@link EntityConstants.ScheduledMail#CURRENT_SCHEMA_VERSION} in batches.
+ * <p/>
+ * Entities are migrated lazily when they are read anyway, this servlet takes care of the rest.
+ * If it runs out of time, it continues in a task with the cursor of the last batch.
+ */
+public class MigrateServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(MigrateServlet.class.getName());
+
+    public static final String PATH = "/cron/migrate";
+    public static final String PARAMETER_CURSOR = "cursor";
+
+    private static final int BATCH_SIZE = 500;
+    private static final long TIME_BUDGET_MILLIS = 5 * 60 * 1000;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        log.entering(MigrateServlet.class.getName(), "doGet");
+
+        final long start = System.currentTimeMillis();
+        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME);
+        final String webSafeCursor = req.getParameter(PARAMETER_CURSOR);
+
+        final FetchOptions fetchOptions = FetchOptions.Builder.withLimit(BATCH_SIZE).chunkSize(BATCH_SIZE);
+        if (webSafeCursor != null) {
+            fetchOptions.startCursor(Cursor.fromWebSafeString(webSafeCursor));
+        }
+
+        final MigrationStats stats = new MigrationStats();
+        while (true) {
+            final QueryResultList<Entity> batch = ds.prepare(q).asQueryResultList(fetchOptions);
+            final List<Key> outdated = new ArrayList<Key>();
+            for (final Entity scheduledMail : batch) {
+                if (EntityHelper.migrate(scheduledMail)) {
+                    outdated.add(scheduledMail.getKey());
+                }
+            }
+            stats.scanned += batch.size();
+
+            for (final List<Key> keys : Lists.partition(outdated, EntityHelper.MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+                migrateInTransaction(ds, keys, stats);
+            }
+
+            if (batch.size() < BATCH_SIZE) {
+                log.info(String.format("Migration finished: %s", stats));
+                break;
+            }
+            fetchOptions.startCursor(batch.getCursor());
+            if (System.currentTimeMillis() - start > TIME_BUDGET_MILLIS) {
+                QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                        .withUrl(PATH)
+                        .method(TaskOptions.Method.GET)
+                        .param(PARAMETER_CURSOR, batch.getCursor().toWebSafeString()));
+                log.info(String.format("Migration continues in a new task: %s", stats));
+                break;
+            }
+        }
+        log.exiting(MigrateServlet.class.getName(), "doGet");
+    }
+
+    /**
+     * Re-reads the entities in a transaction, so we don't overwrite a concurrent update (e.g. by the processing run)
+     */
+    private static void migrateInTransaction(final DatastoreService ds, final List<Key> keys, final MigrationStats stats) {
+        final Transaction txn = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            final Map<Key, Entity> scheduledMails = ds.get(txn, keys);
+            final List<Entity> migrated = new ArrayList<Entity>(scheduledMails.size());
+            long bytesBefore = 0;
+            long bytesAfter = 0;
+            for (final Entity scheduledMail : scheduledMails.values()) {
+                final int sizeBefore = EntityTranslator.convertToPb(scheduledMail).encodingSize();
+                if (EntityHelper.migrate(scheduledMail)) {
+                    bytesBefore += sizeBefore;
+                    bytesAfter += EntityTranslator.convertToPb(scheduledMail).encodingSize();
+                    migrated.add(scheduledMail);
+                }
+            }
+            ds.put(txn, migrated);
+            txn.commit();
+            stats.migrated += migrated.size();
+            stats.bytesBefore += bytesBefore;
+            stats.bytesAfter += bytesAfter;
+        } catch (final Exception e) {
+            // the entities are migrated on their next read or by the next run
+            log.severe(e.getMessage());
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    private static class MigrationStats {
+        private int scanned = 0;
+        private int migrated = 0;
+        private long bytesBefore = 0;
+        private long bytesAfter = 0;
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "scanned %d entities, migrated %d entities, %d bytes before, %d bytes after (%.1f vs. %.1f bytes per entity)",
+                    scanned,
+                    migrated,
+                    bytesBefore,
+                    bytesAfter,
+                    migrated == 0 ? 0d : (double) bytesBefore / migrated,
+                    migrated == 0 ? 0d : (double) bytesAfter / migrated
+            );
+        }
+    }
+}
@@ -1,24 +1,22 @@
 package com.feth.mailfred.servlets;
 
-import com.feth.mailfred.entities.EntityConstants;
-import com.feth.mailfred.entities.EntityHelper;
 import com.feth.mailfred.scheduler.Scheduler;
 import com.feth.mailfred.util.Utils;
 import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
 import com.google.api.client.auth.oauth2.AuthorizationCodeResponseUrl;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.appengine.auth.oauth2.AbstractAppEngineAuthorizationCodeCallbackServlet;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
+import com.google.api.services.gmail.model.Message;
 import com.google.appengine.api.users.UserServiceFactory;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 public class OAuth2CallbackServlet extends AbstractAppEngineAuthorizationCodeCallbackServlet {
 
@@ -29,6 +27,7 @@ public class OAuth2CallbackServlet extends AbstractAppEngineAuthorizationCodeCal
             throws ServletException, IOException {
 
         final String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
+        Utils.getScheduleStore().clearRevoked(userId);
         reboxUnscheduledMessagesForCurrentUserAfterAuth(userId);
         resp.sendRedirect("/");
     }
@@ -37,15 +36,15 @@ public class OAuth2CallbackServlet extends AbstractAppEngineAuthorizationCodeCal
 
         final Scheduler scheduler = new Scheduler(userId);
 
-        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
-        final Iterable<Entity> toBeProcessedScheduledMailsForCurrentUser = EntityHelper.getToBeProcessedScheduledMailsForUser(ds, userId);
-
-        final List<String> scheduledMailIds = new ArrayList<String>();
-        for (final Entity scheduledMail : toBeProcessedScheduledMailsForCurrentUser) {
-            scheduledMailIds.add((String) scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.MAIL_ID));
+        // the lookup runs in the background while we list the messages in Gmail
+        final Iterator<String> toBeProcessedMailIdsForCurrentUser = Utils.getScheduleStore().findPendingForUser(userId);
+        final List<Message> messagesInOutbox = scheduler.getMessagesWithScheduledLabel();
+        final Set<String> scheduledMailIds = new HashSet<String>();
+        while (toBeProcessedMailIdsForCurrentUser.hasNext()) {
+            scheduledMailIds.add(toBeProcessedMailIdsForCurrentUser.next());
         }
 
-        scheduler.reboxUnscheduledMessagesWithOutboxLabel(scheduledMailIds);
+        scheduler.reboxUnscheduledMessagesWithOutboxLabel(messagesInOutbox, scheduledMailIds);
     }
 
     @Override
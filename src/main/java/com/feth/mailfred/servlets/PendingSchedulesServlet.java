@@ -0,0 +1,79 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.PendingSchedulesCache;
+import com.feth.mailfred.entities.PendingSchedulesCache.PendingSchedule;
+import com.feth.mailfred.util.Utils;
+import com.google.appengine.api.users.UserServiceFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Lists the pending schedules of the current user, page by page, the next due first.
+ * Served by the schedule store - the Datastore store keeps the lists in {@link PendingSchedulesCache},
+ * so polling doesn't cause a Datastore query each time.
+ */
+public class PendingSchedulesServlet extends HttpServlet {
+
+    public static final String PARAMETER_CURSOR = "cursor";
+    public static final String PARAMETER_LIMIT = "limit";
+
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 200;
+
+    @Override
+    protected void doOptions(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.addHeader("Access-Control-Allow-Origin", "*");
+    }
+
+    @Override
+    public void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
+
+        resp.addHeader("Access-Control-Allow-Origin", "*");
+        resp.setContentType("application/json");
+
+        final int offset = getIntParameter(req, PARAMETER_CURSOR, 0, Integer.MAX_VALUE);
+        final int limit = getIntParameter(req, PARAMETER_LIMIT, DEFAULT_LIMIT, MAX_LIMIT);
+
+        final List<PendingSchedule> pending = Utils.getScheduleStore().findPendingSchedules(userId);
+        final JSONArray schedules = new JSONArray();
+        final int end = Math.min(pending.size(), offset + limit);
+        for (int i = offset; i < end; i++) {
+            final PendingSchedule schedule = pending.get(i);
+            final JSONObject item = new JSONObject();
+            item.put("mailId", schedule.getMailId());
+            item.put("scheduledFor", schedule.getScheduledFor());
+            item.put("options", schedule.getProcessingOptions().toKeys());
+            schedules.put(item);
+        }
+
+        final JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("error", false);
+        response.put("total", pending.size());
+        response.put("schedules", schedules);
+        if (end < pending.size()) {
+            response.put("cursor", String.valueOf(end));
+        }
+        response.write(resp.getWriter());
+    }
+
+    private static int getIntParameter(final HttpServletRequest req, final String name, final int defaultValue, final int max) {
+        final String value = req.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Math.min(max, Integer.parseInt(value)));
+        } catch (final NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+}
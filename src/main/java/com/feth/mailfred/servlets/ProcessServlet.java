@@ -1,13 +1,11 @@
 package com.feth.mailfred.servlets;
 
-import com.feth.mailfred.entities.EntityHelper;
-import com.feth.mailfred.exceptions.MessageNotFoundException;
-import com.feth.mailfred.scheduler.Scheduler;
-import com.feth.mailfred.scheduler.exceptions.ScheduledLabelWasRemovedException;
-import com.feth.mailfred.scheduler.exceptions.WasAnsweredButNoAnswerOptionWasGivenException;
+import com.feth.mailfred.entities.ScheduleStore;
+import com.feth.mailfred.scheduler.FairShareQueue;
+import com.feth.mailfred.scheduler.MailProcessor;
+import com.feth.mailfred.scheduler.WheelDispatcher;
+import com.feth.mailfred.util.SampledLog;
 import com.feth.mailfred.util.Utils;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 
 import javax.servlet.http.HttpServlet;
@@ -15,7 +13,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Date;
-import java.util.List;
 import java.util.logging.Logger;
 
 import static com.feth.mailfred.entities.EntityConstants.ScheduledMail.Property;
@@ -24,59 +21,61 @@ public class ProcessServlet extends HttpServlet {
 
     private static final Logger log = Logger.getLogger(ProcessServlet.class.getName());
 
+    /**
+     * How many mails of a single user are processed at most in one run - the rest waits for the next run
+     */
+    private static final int MAX_MAILS_PER_USER_PER_RUN = 100;
+
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws IOException {
         log.entering(ProcessServlet.class.getName(), "doGet");
 
         final Date processingRunStart = new Date();
-        final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
-
-        final Iterable<Entity> toBeProcessedScheduledMails = EntityHelper.getToBeProcessedScheduledMails(ds, processingRunStart);
-        int processed = 0;
-        for (final Entity scheduledMail : toBeProcessedScheduledMails) {
-            processed++;
-            try {
-                final String mailId = (String) scheduledMail.getProperty(Property.MAIL_ID);
-                final String userId = (String) scheduledMail.getProperty(Property.USER_ID);
-                @SuppressWarnings("unchecked")
-                final List<String> processingOptions = (List<String>) scheduledMail.getProperty(Property.PROCESSING_OPTIONS);
+        final ScheduleStore store = Utils.getScheduleStore();
 
-                log.info(String.format(
-                        "Starting processing mail with ID %s for user %s with options %s",
-                        mailId,
-                        userId,
-                        processingOptions
-                ));
+        // with the dispatcher backend running, this run is only the safety net for mails it missed
+        final Date dueBefore = WheelDispatcher.isEnabled()
+                ? new Date(processingRunStart.getTime() - WheelDispatcher.CRON_GRACE_MILLIS)
+                : processingRunStart;
+        final Iterable<Entity> toBeProcessedScheduledMails = store.findDue(dueBefore);
 
+        final MailProcessor processor = new MailProcessor(store);
+        // interleave the users, so a single user with a huge backlog can't hold up everybody else
+        final FairShareQueue<Entity> queue = new FairShareQueue<Entity>(MAX_MAILS_PER_USER_PER_RUN);
+        int parked = 0;
+        for (final Entity scheduledMail : toBeProcessedScheduledMails) {
+            final String userId = (String) scheduledMail.getProperty(Property.USER_ID);
+            if (processor.isRevoked(userId)) {
+                // parked until the user authorizes us again
+                parked++;
+                continue;
+            }
+            queue.offer(userId, scheduledMail);
+        }
 
-                final Scheduler s = new Scheduler(userId);
-                final Date now = new Date();
-                try {
-                    s.process(mailId, processingOptions);
-                    scheduledMail.setProperty(Property.PROCESS_STATUS, Property.ProcessStatus.PROCESSED_CORRECTLY);
-                } catch (WasAnsweredButNoAnswerOptionWasGivenException e) {
-                    scheduledMail.setProperty(Property.PROCESS_STATUS, Property.ProcessStatus.ANSWERED);
-                } catch (MessageNotFoundException e) {
-                    scheduledMail.setProperty(Property.PROCESS_STATUS, Property.ProcessStatus.NOT_FOUND);
-                } catch (ScheduledLabelWasRemovedException e) {
-                    scheduledMail.setProperty(Property.PROCESS_STATUS, Property.ProcessStatus.OUTBOX_LABEL_REMOVED);
-                } catch(Exception e) {
-                    scheduledMail.setProperty(Property.PROCESS_STATUS, Property.ProcessStatus.ERROR);
-                } finally {
-                    scheduledMail.setProperty(Property.HAS_BEEN_PROCESSED, true);
-                    scheduledMail.setProperty(Property.PROCESSED_AT, now);
-                }
-                ds.put(scheduledMail);
-            } catch (final Exception e) {
-                // if there is a problem with one mail, we don't want the others to be affected
-                log.severe(e.getMessage());
-                if (Utils.isDev()) {
-                    e.printStackTrace();
-                }
+        int processed = 0;
+        for (final Entity scheduledMail : queue) {
+            switch (processor.process(scheduledMail)) {
+                case PROCESSED:
+                    processed++;
+                    break;
+                case PARKED:
+                    parked++;
+                    break;
+                default:
+                    break;
             }
         }
-        log.info(String.format("Processed %d mails",processed));
+        processor.flushStatistics();
+        // the summary per user is logged by the processor, the queue depths add the deferred mails
+        log.info(SampledLog.format("processing.queue",
+                "processed", processed,
+                "users", queue.getOwnerCount(),
+                "deferred", queue.getDeferredCount(),
+                "parked", parked,
+                "queueDepths", queue.getQueueDepths()
+        ));
         log.exiting(ProcessServlet.class.getName(), "doGet");
     }
 
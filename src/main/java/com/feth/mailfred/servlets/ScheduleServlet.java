@@ -2,9 +2,11 @@ package com.feth.mailfred.servlets;
 
 
 import com.feth.mailfred.entities.EntityConstants.ScheduledMail.Property.ProcessingOptions;
-import com.feth.mailfred.entities.EntityHelper;
+import com.feth.mailfred.entities.AuthHealthHelper;
+import com.feth.mailfred.entities.ProcessingOptionSet;
 import com.feth.mailfred.exceptions.*;
 import com.feth.mailfred.scheduler.Scheduler;
+import com.feth.mailfred.util.Utils;
 import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
@@ -19,6 +21,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 
@@ -26,6 +29,8 @@ public class ScheduleServlet extends HttpServlet {
 
     private static final Logger log = Logger.getLogger(ScheduleServlet.class.getName());
 
+    private static final AtomicBoolean firstRequest = new AtomicBoolean(true);
+
     public static final String PARAMETER_WHEN = "when";
     public static final String PARAMETER_WHEN_VALUE_DELTA_PREFIX = "delta:";
     public static final String PARAMETER_MESSAGE_ID = "msgId";
@@ -54,22 +59,48 @@ public class ScheduleServlet extends HttpServlet {
     }
 
     private void schedule(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final long start = System.currentTimeMillis();
+        try {
+            doSchedule(req, resp);
+        } finally {
+            if (firstRequest.compareAndSet(true, false)) {
+                // lets us compare the first request of warmed up and cold instances in the logs
+                log.info(String.format(
+                        "First schedule request on this instance took %d ms (%s instance)",
+                        System.currentTimeMillis() - start,
+                        WarmupServlet.isWarmedUp() ? "warm" : "cold"
+                ));
+            }
+        }
+    }
+
+    private void doSchedule(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         log.entering(ScheduleServlet.class.getName(), "schedule");
         final Date now = new Date();
         final String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
-        final Scheduler scheduler = new Scheduler(userId);
 
         resp.addHeader("Access-Control-Allow-Origin", "*");
         resp.setContentType("application/json");
         final JSONObject response = new JSONObject();
         response.put("success", false);
         response.put("error", "Unknown error occurred");
+
+        if (Utils.getScheduleStore().isRevoked(userId)) {
+            // no need to build a client for a user who revoked our access
+            final JSONObject error = new JSONObject();
+            error.put("code", ERROR_CODE_AUTH_MISSING);
+            response.put("error", error);
+            response.write(resp.getWriter());
+            return;
+        }
+
+        final Scheduler scheduler = new Scheduler(userId);
         try {
             log.info("Getting schedule date from the request");
             final Date scheduleAt = getScheduledAtFromRequest(req, now);
 
             log.info("Getting processing options from the request");
-            final List<String> processingOptions = getProcessingOptionsFromRequest(req);
+            final ProcessingOptionSet processingOptions = getProcessingOptionsFromRequest(req);
 
             // this is more expensive, so do it last
             log.info("Getting mailId from the request");
@@ -77,7 +108,7 @@ public class ScheduleServlet extends HttpServlet {
 
             log.info(String.format("User %s told us to schedule mail with ID %s at %s with the following options: %s", userId, mailId, scheduleAt, processingOptions));
 
-            EntityHelper.scheduleMail(now, userId, scheduler, mailId, scheduleAt, processingOptions);
+            Utils.getScheduleStore().schedule(now, userId, scheduler, mailId, scheduleAt, processingOptions);
 
             response.put("success", true);
             response.put("error", false);
@@ -108,6 +139,7 @@ public class ScheduleServlet extends HttpServlet {
             if (details.getCode() == HttpServletResponse.SC_UNAUTHORIZED &&
                     errorInfo.getLocation().equals("Authorization") &&
                     (reason.equals("required") || reason.equals("authError"))) {
+                // not parked - the access token was rejected even after a refresh, which might be temporary
                 final JSONObject error = new JSONObject();
                 error.put("code", ERROR_CODE_AUTH_MISSING);
                 response.put("error", error);
@@ -116,7 +148,8 @@ public class ScheduleServlet extends HttpServlet {
                 e.printStackTrace();
             }
         } catch (TokenResponseException e) {
-            if ("invalid_grant".equals(e.getDetails().getError())) {
+            if (AuthHealthHelper.isAuthFailure(e)) {
+                Utils.getScheduleStore().markRevoked(userId, e);
                 final JSONObject error = new JSONObject();
                 error.put("code", ERROR_CODE_AUTH_MISSING);
                 response.put("error", error);
@@ -135,12 +168,9 @@ public class ScheduleServlet extends HttpServlet {
         response.write(resp.getWriter());
     }
 
-    private List<String> getProcessingOptionsFromRequest(HttpServletRequest req) throws NoActionSpecifiedException {
-        final List<String> processingOptions = getTheProcessingOptionsFromRequest(req);
-        if (!processingOptions.contains(ProcessingOptions.MARK_UNREAD) &&
-                !processingOptions.contains(ProcessingOptions.MOVE_TO_INBOX) &&
-                !processingOptions.contains(ProcessingOptions.STAR)
-                ) {
+    private ProcessingOptionSet getProcessingOptionsFromRequest(HttpServletRequest req) throws NoActionSpecifiedException {
+        final ProcessingOptionSet processingOptions = ProcessingOptionSet.fromKeys(getTheProcessingOptionsFromRequest(req));
+        if (!processingOptions.hasAnyAction()) {
             throw new NoActionSpecifiedException("There must be at least one processing option enabled");
         }
         return processingOptions;
@@ -179,7 +209,7 @@ public class ScheduleServlet extends HttpServlet {
      * @param now the current date - we need this in case we got a delta request
      * @return a unix timestamp
      */
-    private Long getWhenTheMailShouldBeScheduledFromRequest(final HttpServletRequest req, final Date now) throws NoScheduleTimeException {
+    static Long getWhenTheMailShouldBeScheduledFromRequest(final HttpServletRequest req, final Date now) throws NoScheduleTimeException {
         String whenParam = req.getParameter(PARAMETER_WHEN);
         if (whenParam == null || whenParam.trim().equals("")) {
             throw new NoScheduleTimeException();
@@ -16,6 +16,16 @@ public class SetupServlet extends AbstractAppEngineAuthorizationCodeServlet {
     public static final String PARAMETER_FORMAT = "format";
     public static final String FORMAT_JSON = "json";
 
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        final String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
+        if (Utils.getScheduleStore().isRevoked(userId)) {
+            // the stored credential doesn't work anymore, so ask the user for consent again instead of accepting it
+            Utils.newFlow(userId).getCredentialDataStore().delete(userId);
+        }
+        super.service(req, resp);
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws IOException {
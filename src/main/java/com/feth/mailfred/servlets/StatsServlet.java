@@ -0,0 +1,57 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.StatusCounters;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import org.json.JSONObject;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Returns the number of scheduled mails per process status for a day (UTC), overall or for a single user
+ */
+public class StatsServlet extends HttpServlet {
+
+    public static final String PARAMETER_DAY = "day";
+    public static final String PARAMETER_USER_ID = "userId";
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        resp.setContentType("application/json");
+        final JSONObject response = new JSONObject();
+
+        final String dayParam = req.getParameter(PARAMETER_DAY);
+        final Date day;
+        try {
+            day = dayParam == null ? new Date() : StatusCounters.parseDay(dayParam);
+        } catch (ParseException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.put("success", false);
+            response.put("error", "Day must be given as yyyy-MM-dd");
+            response.write(resp.getWriter());
+            return;
+        }
+        final String userId = req.getParameter(PARAMETER_USER_ID);
+        if (userId != null && !StatusCounters.isPerUserEnabled()) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.put("success", false);
+            response.put("error", "Per user statistics are disabled");
+            response.write(resp.getWriter());
+            return;
+        }
+
+        final Map<String, Long> totals = StatusCounters.getTotals(DatastoreServiceFactory.getDatastoreService(), day, userId);
+        response.put("success", true);
+        response.put("error", false);
+        response.put("day", StatusCounters.formatDay(day));
+        response.put("userId", userId);
+        response.put("counts", totals);
+        response.write(resp.getWriter());
+    }
+}
@@ -0,0 +1,78 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.EntityConstants;
+import com.feth.mailfred.util.TransportFactory;
+import com.feth.mailfred.util.Utils;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Handles /_ah/warmup: loads the Gmail/Jackson stack, the HTTP transport, the client secrets
+ * and the shared caches before the instance receives its first user request.
+ */
+public class WarmupServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+    private static final String WARMUP_USER_ID = "warmup";
+
+    private static volatile boolean warmedUp = false;
+
+    /**
+     * @return whether this instance received (and finished) a warmup request
+     */
+    public static boolean isWarmedUp() {
+        return warmedUp;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        log.entering(WarmupServlet.class.getName(), "doGet");
+        final long start = System.currentTimeMillis();
+        long stepStart = start;
+
+        Utils.getClientCredential();
+        log.info(String.format("Warmup: loaded client secrets in %d ms", System.currentTimeMillis() - stepStart));
+
+        stepStart = System.currentTimeMillis();
+        // builds (but doesn't send) a request, which loads the transport and the Gmail client classes
+        final TransportFactory transportFactory = Utils.getTransportFactory();
+        final Gmail gmail = new Gmail.Builder(transportFactory.getTransport(), Utils.getJsonFactory(), transportFactory.wrap(null))
+                .setApplicationName(transportFactory.getApplicationName(Utils.getAppName()))
+                .build();
+        gmail.users().messages().get("me", "0000000000000000").buildHttpRequest();
+        transportFactory.getTransport().createRequestFactory().buildGetRequest(new GenericUrl("https://www.googleapis.com/"));
+        log.info(String.format("Warmup: initialized Gmail client and HTTP transport in %d ms", System.currentTimeMillis() - stepStart));
+
+        stepStart = System.currentTimeMillis();
+        // the first parse of a model class is expensive because of reflection
+        Utils.getJsonFactory().fromString("{\"id\":\"0000000000000000\",\"threadId\":\"0000000000000000\",\"labelIds\":[\"INBOX\"]}", Message.class);
+        log.info(String.format("Warmup: initialized JSON parser in %d ms", System.currentTimeMillis() - stepStart));
+
+        stepStart = System.currentTimeMillis();
+        // the lookups of the auth health check, without caching anything for a user that doesn't exist
+        MemcacheServiceFactory.getMemcacheService().contains(WARMUP_USER_ID);
+        try {
+            DatastoreServiceFactory.getDatastoreService().get(KeyFactory.createKey(EntityConstants.AuthHealth.NAME, WARMUP_USER_ID));
+        } catch (EntityNotFoundException e) {
+            // expected
+        }
+        log.info(String.format("Warmup: initialized memcache and Datastore in %d ms", System.currentTimeMillis() - stepStart));
+
+        warmedUp = true;
+        log.info(String.format("Warmup finished in %d ms", System.currentTimeMillis() - start));
+        log.exiting(WarmupServlet.class.getName(), "doGet");
+    }
+}
@@ -0,0 +1,89 @@
+package com.feth.mailfred.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts and times the mails of a run (e.g. a processing run) overall and per user,
+ * so a run is logged with a single record plus one record per user instead of a record per mail.
+ * An instance is not thread safe.
+ */
+public class RunSummary {
+
+    private static class Totals {
+        private long count = 0;
+        private long millis = 0;
+        private long maxMillis = 0;
+        private final Map<String, Long> statuses = new LinkedHashMap<String, Long>();
+
+        private void add(final String status, final long millis) {
+            count++;
+            this.millis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            final Long statusCount = statuses.get(status);
+            statuses.put(status, statusCount == null ? 1 : statusCount + 1);
+        }
+
+        private Object[] toKeyValues(final Object... prefix) {
+            final Object[] keyValues = new Object[prefix.length + 8 + statuses.size() * 2];
+            System.arraycopy(prefix, 0, keyValues, 0, prefix.length);
+            int i = prefix.length;
+            keyValues[i++] = "mails";
+            keyValues[i++] = count;
+            keyValues[i++] = "millis";
+            keyValues[i++] = millis;
+            keyValues[i++] = "avgMillis";
+            keyValues[i++] = count == 0 ? 0 : millis / count;
+            keyValues[i++] = "maxMillis";
+            keyValues[i++] = maxMillis;
+            for (final Map.Entry<String, Long> status : statuses.entrySet()) {
+                keyValues[i++] = status.getKey();
+                keyValues[i++] = status.getValue();
+            }
+            return keyValues;
+        }
+    }
+
+    private final String event;
+    private Totals run = new Totals();
+    private Map<String, Totals> users = new LinkedHashMap<String, Totals>();
+    private long startedAt = System.currentTimeMillis();
+
+    /**
+     * @param event the event name of the records, {@code .run} and {@code .user} are appended
+     */
+    public RunSummary(final String event) {
+        this.event = event;
+    }
+
+    public void record(final String userId, final String status, final long millis) {
+        run.add(status, millis);
+        Totals user = users.get(userId);
+        if (user == null) {
+            user = new Totals();
+            users.put(userId, user);
+        }
+        user.add(status, millis);
+    }
+
+    /**
+     * Logs the summary of everything recorded since the last call and starts over
+     */
+    public void log(final Logger log) {
+        if (run.count == 0) {
+            return;
+        }
+        log.logp(Level.INFO, log.getName(), event, SampledLog.format(event + ".run", run.toKeyValues(
+                "users", users.size(),
+                "elapsedMillis", System.currentTimeMillis() - startedAt
+        )));
+        for (final Map.Entry<String, Totals> user : users.entrySet()) {
+            log.logp(Level.INFO, log.getName(), event, SampledLog.format(event + ".user", user.getValue().toKeyValues("userId", user.getKey())));
+        }
+        run = new Totals();
+        users = new LinkedHashMap<String, Totals>();
+        startedAt = System.currentTimeMillis();
+    }
+}
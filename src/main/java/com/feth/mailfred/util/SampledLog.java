@@ -0,0 +1,118 @@
+package com.feth.mailfred.util;
+
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging for the hot paths, which run once per mail or per message (e.g. the processing of due mails).
+ * <p/>
+ * Records are structured ({@code event key=value key=value}), only a sample of them is logged
+ * (see {@link #SAMPLE_RATE_PROPERTY}) and the message is only built if the record is really logged.
+ * Errors are never sampled and are logged with their stack trace. Counts and timings of all mails
+ * belong into a {@link RunSummary}.
+ */
+public class SampledLog {
+
+    /**
+     * The share of hot path records to log, from 0 (none) to 1 (all)
+     */
+    public static final String SAMPLE_RATE_PROPERTY = "mailfred.log.sampleRate";
+    private static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+    private static final Random random = new Random();
+    private static volatile double sampleRate = readSampleRate();
+
+    private final Logger log;
+    private final String event;
+
+    /**
+     * Builds the message when a handler formats the record, not when it is logged
+     */
+    private static class LazyMessage {
+        private final String event;
+        private final Object[] keyValues;
+
+        private LazyMessage(final String event, final Object[] keyValues) {
+            this.event = event;
+            this.keyValues = keyValues;
+        }
+
+        @Override
+        public String toString() {
+            return format(event, keyValues);
+        }
+    }
+
+    public SampledLog(final Logger log, final String event) {
+        this.log = log;
+        this.event = event;
+    }
+
+    /**
+     * Logs a sample of the calls at INFO
+     *
+     * @param keyValues alternating keys and values
+     */
+    public void log(final Object... keyValues) {
+        if (!log.isLoggable(Level.INFO) || !isSampled()) {
+            return;
+        }
+        // the loggers are named after their classes, so this names the caller instead of this class as the source
+        log.logp(Level.INFO, log.getName(), event, "{0}", new LazyMessage(event, keyValues));
+    }
+
+    /**
+     * Always logs the error with all details
+     *
+     * @param keyValues alternating keys and values
+     */
+    public void error(final Level level, final Throwable t, final Object... keyValues) {
+        log.logp(level, log.getName(), event, format(event + ".error", keyValues), t);
+    }
+
+    private static boolean isSampled() {
+        final double rate = sampleRate;
+        return rate >= 1 || (rate > 0 && random.nextDouble() < rate);
+    }
+
+    /**
+     * @return {@code event key=value key=value}, values with spaces are quoted
+     */
+    public static String format(final String event, final Object... keyValues) {
+        final StringBuilder sb = new StringBuilder(event);
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            sb.append(' ').append(keyValues[i]).append('=');
+            final String value = String.valueOf(keyValues[i + 1]);
+            if (value.indexOf(' ') >= 0) {
+                sb.append('"').append(value.replace("\"", "\\\"")).append('"');
+            } else {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Overrides the configured sample rate, e.g. 1 to log every record while debugging or 0 for benchmarks
+     */
+    public static void setSampleRate(final double rate) {
+        sampleRate = rate;
+    }
+
+    private static double readSampleRate() {
+        final String rate = System.getProperty(SAMPLE_RATE_PROPERTY);
+        if (rate == null) {
+            return DEFAULT_SAMPLE_RATE;
+        }
+        try {
+            return Double.parseDouble(rate);
+        } catch (final NumberFormatException e) {
+            return DEFAULT_SAMPLE_RATE;
+        }
+    }
+}
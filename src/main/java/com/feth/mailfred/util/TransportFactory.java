@@ -0,0 +1,450 @@
+package com.feth.mailfred.util;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides the HTTP transport for the Gmail client together with the policy for every request:
+ * gzip compressed responses, connect and read deadlines per HTTP method and a limit for the response size.
+ * <p/>
+ * The transport itself is pluggable, so tests and benchmarks can use a mock or local transport.
+ */
+public class TransportFactory {
+
+    private static final Logger log = Logger.getLogger(TransportFactory.class.getName());
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+    public static final long DEFAULT_MAX_RESPONSE_BYTES = 5 * 1024 * 1024;
+
+    public static class Deadline {
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+
+        public Deadline(final int connectTimeoutMillis, final int readTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        public int getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+
+        public int getReadTimeoutMillis() {
+            return readTimeoutMillis;
+        }
+    }
+
+    public static class Builder {
+        private final HttpTransport transport;
+        private final Map<String, Deadline> deadlines = new HashMap<String, Deadline>();
+        private Deadline defaultDeadline = new Deadline(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+        private long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+        private boolean gzip = true;
+
+        public Builder(final HttpTransport transport) {
+            this.transport = transport;
+        }
+
+        /**
+         * @param method an HTTP method like {@link com.google.api.client.http.HttpMethods#GET}
+         */
+        public Builder setDeadline(final String method, final Deadline deadline) {
+            deadlines.put(method, deadline);
+            return this;
+        }
+
+        /**
+         * The deadline for all methods without a deadline of their own
+         */
+        public Builder setDefaultDeadline(final Deadline deadline) {
+            this.defaultDeadline = deadline;
+            return this;
+        }
+
+        /**
+         * @param maxResponseBytes responses with a larger Content-Length or more bytes on the wire are rejected,
+         *                         0 disables the limit
+         */
+        public Builder setMaxResponseBytes(final long maxResponseBytes) {
+            this.maxResponseBytes = maxResponseBytes;
+            return this;
+        }
+
+        public Builder setGzip(final boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        public TransportFactory build() {
+            return new TransportFactory(this);
+        }
+    }
+
+    private final HttpTransport transport;
+    private final Map<String, Deadline> deadlines;
+    private final Deadline defaultDeadline;
+    private final long maxResponseBytes;
+    private final boolean gzip;
+
+    private TransportFactory(final Builder builder) {
+        this.transport = new InstrumentedTransport(builder.transport, builder.maxResponseBytes);
+        this.deadlines = new HashMap<String, Deadline>(builder.deadlines);
+        this.defaultDeadline = builder.defaultDeadline;
+        this.maxResponseBytes = builder.maxResponseBytes;
+        this.gzip = builder.gzip;
+    }
+
+    /**
+     * @return the transport which logs every call and enforces the response size limit,
+     * use it together with {@link #wrap(HttpRequestInitializer)}
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    public long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    /**
+     * Google APIs only compress their responses if the user agent contains "gzip"
+     *
+     * @param appName the name of the application
+     * @return the application name to put into the user agent
+     */
+    public String getApplicationName(final String appName) {
+        return gzip ? appName + " (gzip)" : appName;
+    }
+
+    public Deadline getDeadline(final String method) {
+        final Deadline deadline = deadlines.get(method);
+        return deadline == null ? defaultDeadline : deadline;
+    }
+
+    /**
+     * @param delegate the initializer to run first, usually the credential of the user (may be null)
+     * @return an initializer which applies the policy of this factory to every request
+     */
+    public HttpRequestInitializer wrap(final HttpRequestInitializer delegate) {
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(final HttpRequest request) throws IOException {
+                if (delegate != null) {
+                    delegate.initialize(request);
+                }
+                request.getHeaders().setAcceptEncoding(gzip ? "gzip" : null);
+
+                // the HTTP method is only set after the initializer ran, so the deadline is applied on execution
+                final HttpExecuteInterceptor executeInterceptor = request.getInterceptor();
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override
+                    public void intercept(final HttpRequest request) throws IOException {
+                        if (executeInterceptor != null) {
+                            executeInterceptor.intercept(request);
+                        }
+                        final Deadline deadline = getDeadline(request.getRequestMethod());
+                        request.setConnectTimeout(deadline.getConnectTimeoutMillis());
+                        request.setReadTimeout(deadline.getReadTimeoutMillis());
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Sits below the request and response handling of the client library, so it sees every call including
+     * retries and calls that fail with an exception, and it counts the bytes actually read from the connection.
+     */
+    private static class InstrumentedTransport extends HttpTransport {
+
+        /**
+         * Protected in {@link HttpTransport} and the transports in use are final, so it can only be called reflectively
+         */
+        private static final Method BUILD_REQUEST;
+
+        static {
+            try {
+                BUILD_REQUEST = HttpTransport.class.getDeclaredMethod("buildRequest", String.class, String.class);
+                BUILD_REQUEST.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final HttpTransport delegate;
+        private final long maxResponseBytes;
+
+        private InstrumentedTransport(final HttpTransport delegate, final long maxResponseBytes) {
+            this.delegate = delegate;
+            this.maxResponseBytes = maxResponseBytes;
+        }
+
+        @Override
+        public boolean supportsMethod(final String method) throws IOException {
+            return delegate.supportsMethod(method);
+        }
+
+        @Override
+        public void shutdown() throws IOException {
+            delegate.shutdown();
+        }
+
+        @Override
+        protected LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+            try {
+                return new InstrumentedRequest((LowLevelHttpRequest) BUILD_REQUEST.invoke(delegate, method, url), method, url, maxResponseBytes);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    private static class InstrumentedRequest extends LowLevelHttpRequest {
+        private final LowLevelHttpRequest delegate;
+        private final String method;
+        private final String path;
+        private final long maxResponseBytes;
+
+        private InstrumentedRequest(final LowLevelHttpRequest delegate, final String method, final String url, final long maxResponseBytes) {
+            this.delegate = delegate;
+            this.method = method;
+            this.path = new GenericUrl(url).getRawPath();
+            this.maxResponseBytes = maxResponseBytes;
+        }
+
+        @Override
+        public void addHeader(final String name, final String value) throws IOException {
+            delegate.addHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(final int connectTimeout, final int readTimeout) throws IOException {
+            delegate.setTimeout(connectTimeout, readTimeout);
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            delegate.setContentType(getContentType());
+            delegate.setContentEncoding(getContentEncoding());
+            delegate.setContentLength(getContentLength());
+            delegate.setStreamingContent(getStreamingContent());
+
+            final long startedAt = System.currentTimeMillis();
+            final LowLevelHttpResponse response;
+            try {
+                response = delegate.execute();
+            } catch (IOException e) {
+                log.log(Level.FINE, String.format("%s %s: failed after %d ms", method, path, System.currentTimeMillis() - startedAt), e);
+                throw e;
+            }
+
+            final long contentLength = response.getContentLength();
+            if (log.isLoggable(Level.FINEST)) {
+                log.finest(String.format("%s %s: headers after %d ms", method, path, System.currentTimeMillis() - startedAt));
+            }
+            if (maxResponseBytes > 0 && contentLength > maxResponseBytes) {
+                response.disconnect();
+                throw new IOException(String.format(
+                        "Response of %d bytes exceeds the limit of %d bytes", contentLength, maxResponseBytes));
+            }
+            return new InstrumentedResponse(response, method, path, maxResponseBytes, startedAt);
+        }
+    }
+
+    /**
+     * Logs a call once its content is consumed, i.e. when the content hits EOF, is closed or the response is
+     * disconnected - only then the bytes on the wire and the total time are known.
+     */
+    private static class InstrumentedResponse extends LowLevelHttpResponse {
+        private final LowLevelHttpResponse delegate;
+        private final String method;
+        private final String path;
+        private final long maxResponseBytes;
+        private final long startedAt;
+        private long bytesRead = 0;
+        private boolean logged = false;
+
+        private InstrumentedResponse(final LowLevelHttpResponse delegate, final String method, final String path,
+                                     final long maxResponseBytes, final long startedAt) {
+            this.delegate = delegate;
+            this.method = method;
+            this.path = path;
+            this.maxResponseBytes = maxResponseBytes;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Chunked responses have no Content-Length, so the limit is enforced while reading. The bytes are counted
+         * as they come from the connection, i.e. before a gzip compressed response is decompressed.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream content = delegate.getContent();
+            if (content == null) {
+                completed();
+                return null;
+            }
+            return new FilterInputStream(content) {
+                @Override
+                public int read() throws IOException {
+                    final int b;
+                    try {
+                        b = super.read();
+                    } catch (IOException e) {
+                        throw failed(e);
+                    }
+                    if (b >= 0) {
+                        count(1);
+                    } else {
+                        completed();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                    final int read;
+                    try {
+                        read = super.read(buffer, offset, length);
+                    } catch (IOException e) {
+                        throw failed(e);
+                    }
+                    if (read > 0) {
+                        count(read);
+                    } else if (read < 0) {
+                        completed();
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(final long n) throws IOException {
+                    final long skipped = super.skip(n);
+                    count(skipped);
+                    return skipped;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        completed();
+                    }
+                }
+            };
+        }
+
+        private void count(final long bytes) throws IOException {
+            bytesRead += bytes;
+            if (maxResponseBytes > 0 && bytesRead > maxResponseBytes) {
+                delegate.disconnect();
+                throw failed(new IOException(String.format(
+                        "Response exceeds the limit of %d bytes", maxResponseBytes)));
+            }
+        }
+
+        private void completed() throws IOException {
+            if (logged) {
+                return;
+            }
+            logged = true;
+            if (log.isLoggable(Level.FINE)) {
+                log.fine(String.format(
+                        "%s %s: status %d, %d bytes (%s), %d ms",
+                        method,
+                        path,
+                        delegate.getStatusCode(),
+                        bytesRead,
+                        delegate.getContentEncoding() == null ? "identity" : delegate.getContentEncoding(),
+                        System.currentTimeMillis() - startedAt
+                ));
+            }
+        }
+
+        private IOException failed(final IOException e) {
+            if (!logged) {
+                logged = true;
+                log.log(Level.FINE, String.format("%s %s: failed after reading %d bytes in %d ms",
+                        method, path, bytesRead, System.currentTimeMillis() - startedAt), e);
+            }
+            return e;
+        }
+
+        @Override
+        public String getContentEncoding() throws IOException {
+            return delegate.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() throws IOException {
+            return delegate.getContentLength();
+        }
+
+        @Override
+        public String getContentType() throws IOException {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getStatusLine() throws IOException {
+            return delegate.getStatusLine();
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() throws IOException {
+            return delegate.getReasonPhrase();
+        }
+
+        @Override
+        public int getHeaderCount() throws IOException {
+            return delegate.getHeaderCount();
+        }
+
+        @Override
+        public String getHeaderName(final int index) throws IOException {
+            return delegate.getHeaderName(index);
+        }
+
+        @Override
+        public String getHeaderValue(final int index) throws IOException {
+            return delegate.getHeaderValue(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            delegate.disconnect();
+            completed();
+        }
+    }
+}
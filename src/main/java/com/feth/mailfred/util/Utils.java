@@ -1,5 +1,7 @@
 package com.feth.mailfred.util;
 
+import com.feth.mailfred.entities.DatastoreScheduleStore;
+import com.feth.mailfred.entities.ScheduleStore;
 import com.google.api.client.auth.oauth2.DataStoreCredentialRefreshListener;
 import com.google.api.client.extensions.appengine.datastore.AppEngineDataStoreFactory;
 import com.google.api.client.extensions.appengine.http.UrlFetchTransport;
@@ -7,10 +9,13 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.extensions.appengine.auth.oauth2.AppIdentityCredential;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMethods;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.GmailScopes;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
 
 import javax.servlet.http.HttpServletRequest;
@@ -23,17 +28,31 @@ public class Utils {
     private static final AppEngineDataStoreFactory DATA_STORE_FACTORY =
             AppEngineDataStoreFactory.getDefaultInstance();
     private static final JacksonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-    private static final UrlFetchTransport HTTP_TRANSPORT = new UrlFetchTransport();
+    private static volatile TransportFactory transportFactory = new TransportFactory.Builder(new UrlFetchTransport())
+            .setDeadline(HttpMethods.GET, new TransportFactory.Deadline(5 * 1000, 15 * 1000))
+            // modify requests and batches of them
+            .setDeadline(HttpMethods.POST, new TransportFactory.Deadline(5 * 1000, 30 * 1000))
+            .build();
+    private static volatile ScheduleStore scheduleStore = new DatastoreScheduleStore(
+            DatastoreServiceFactory.getDatastoreService(), DatastoreServiceFactory.getAsyncDatastoreService());
     private static final String APP_NAME = "MailFred";
 
+    /**
+     * The client secrets never change at runtime, so they are only parsed once per instance
+     */
+    private static volatile GoogleClientSecrets clientSecrets = null;
+
     public static String getRedirectUri(HttpServletRequest req) {
         GenericUrl url = new GenericUrl(req.getRequestURL().toString());
         url.setRawPath("/oauth2callback");
         return url.build();
     }
 
-    private static GoogleClientSecrets getClientCredential() throws IOException {
-        return GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(Utils.class.getResourceAsStream(getCredentialPath())));
+    public static GoogleClientSecrets getClientCredential() throws IOException {
+        if (clientSecrets == null) {
+            clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(Utils.class.getResourceAsStream(getCredentialPath())));
+        }
+        return clientSecrets;
     }
 
     private static String getCredentialPath() {
@@ -41,8 +60,11 @@ public class Utils {
     }
 
     public static GoogleAuthorizationCodeFlow newFlow(final String userId) throws IOException {
-        return new GoogleAuthorizationCodeFlow.Builder(HTTP_TRANSPORT, JSON_FACTORY,
+        // token requests, e.g. the refresh before a Gmail call, get the same deadlines and limits as the Gmail calls
+        final TransportFactory factory = transportFactory;
+        return new GoogleAuthorizationCodeFlow.Builder(factory.getTransport(), JSON_FACTORY,
                 getClientCredential(), Collections.singleton(GmailScopes.GMAIL_MODIFY))
+                .setRequestInitializer(factory.wrap(null))
                 .setDataStoreFactory(DATA_STORE_FACTORY)
                 .setAccessType("offline")
                 .setApprovalPrompt("force")
@@ -51,6 +73,40 @@ public class Utils {
                 .build();
     }
 
+    public static JacksonFactory getJsonFactory() {
+        return JSON_FACTORY;
+    }
+
+    public static HttpTransport getHttpTransport() {
+        return transportFactory.getTransport();
+    }
+
+    public static TransportFactory getTransportFactory() {
+        return transportFactory;
+    }
+
+    /**
+     * Replaces the transport of all Gmail clients created from now on, e.g. with a mock transport for tests and benchmarks
+     */
+    public static void setTransportFactory(final TransportFactory factory) {
+        transportFactory = factory;
+    }
+
+    public static ScheduleStore getScheduleStore() {
+        return scheduleStore;
+    }
+
+    /**
+     * Replaces the store of the scheduled mails, e.g. with an in-memory store for tests and benchmarks
+     */
+    public static void setScheduleStore(final ScheduleStore store) {
+        scheduleStore = store;
+    }
+
+    public static String getAppName() {
+        return APP_NAME;
+    }
+
     public static boolean isDev() {
         return SystemProperty.environment.value() == SystemProperty.Environment.Value.Development;
     }
@@ -63,8 +119,9 @@ public class Utils {
             credential =
                     new AppIdentityCredential(Collections.singletonList(GmailScopes.GMAIL_MODIFY));
         }
-        return new Gmail.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
-                .setApplicationName(APP_NAME)
+        final TransportFactory factory = transportFactory;
+        return new Gmail.Builder(factory.getTransport(), JSON_FACTORY, factory.wrap(credential))
+                .setApplicationName(factory.getApplicationName(APP_NAME))
                 .build();
     }
 }
@@ -0,0 +1,68 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DatastoreScheduleStoreTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+    private DatastoreScheduleStore store;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+        store = new DatastoreScheduleStore(ds, DatastoreServiceFactory.getAsyncDatastoreService());
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void onlyOneProcessorClaimsAMail() {
+        final Key key = ds.put(EntityHelper.createNewScheduledMailEntity("user", "mail", new Date(1000), ProcessingOptionSet.fromBits(0), new Date(0)));
+
+        final Entity claimed = store.claim(key, "dispatcher", new Date(2000), new Date(60000));
+        assertNotNull(claimed);
+        assertEquals("dispatcher", claimed.getProperty(EntityConstants.ScheduledMail.Property.CLAIMED_BY));
+        assertNull(store.claim(key, "cron", new Date(3000), new Date(60000)));
+
+        // the claim of a processor that died expires
+        assertNotNull(store.claim(key, "cron", new Date(60000), new Date(120000)));
+    }
+
+    @Test
+    public void processedCancelledAndParkedMailsCantBeClaimed() throws Exception {
+        final Key key = ds.put(EntityHelper.createNewScheduledMailEntity("user", "mail", new Date(1000), ProcessingOptionSet.fromBits(0), new Date(0)));
+        final Entity claimed = store.claim(key, "cron", new Date(2000), new Date(60000));
+        store.recordResult(claimed, EntityConstants.ScheduledMail.Property.ProcessStatus.PROCESSED_CORRECTLY, new Date(3000));
+
+        final Entity processed = ds.get(key);
+        assertFalse(processed.hasProperty(EntityConstants.ScheduledMail.Property.CLAIMED_BY));
+        assertNull(store.claim(key, "dispatcher", new Date(120000), new Date(180000)));
+
+        final Key parked = ds.put(EntityHelper.createNewScheduledMailEntity("revoked", "mail", new Date(1000), ProcessingOptionSet.fromBits(0), new Date(0)));
+        assertEquals(1, EntityHelper.parkScheduledMails(ds, "revoked"));
+        assertNull(store.claim(parked, "cron", new Date(2000), new Date(60000)));
+    }
+}
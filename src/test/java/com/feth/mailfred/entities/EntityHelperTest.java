@@ -0,0 +1,103 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntityHelperTest {
+
+    private static final String USER_ID = "user";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void reschedulesMoreMailsThanFitIntoOneTransaction() {
+        final List<String> mailIds = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) {
+            mailIds.add("mail" + i);
+            schedule("mail" + i, new Date(1000));
+        }
+
+        final Map<String, Boolean> results = EntityHelper.rescheduleMails(ds, new Date(500), USER_ID, mailIds, new Date(2000));
+        assertEquals(12, results.size());
+        assertEquals(Collections.singleton(true), new HashSet<Boolean>(results.values()));
+        final List<Entity> pending = getPending();
+        assertEquals(12, pending.size());
+        for (final Entity scheduledMail : pending) {
+            assertEquals(new Date(2000), scheduledMail.getProperty(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR));
+        }
+    }
+
+    @Test
+    public void reschedulesAMailWithMorePendingSchedulesThanFitIntoOneTransaction() {
+        for (int i = 0; i < 7; i++) {
+            schedule("duplicate", new Date(1000 + i));
+        }
+        schedule("single", new Date(1000));
+
+        final Map<String, Boolean> results = EntityHelper.rescheduleMails(ds, new Date(500), USER_ID, Arrays.asList("duplicate", "single"), new Date(2000));
+        assertEquals(Boolean.TRUE, results.get("duplicate"));
+        assertEquals(Boolean.TRUE, results.get("single"));
+        assertEquals(2, getPending().size());
+    }
+
+    @Test
+    public void cancelsMails() {
+        for (int i = 0; i < 6; i++) {
+            schedule("duplicate", new Date(1000 + i));
+        }
+        for (int i = 0; i < 4; i++) {
+            schedule("mail" + i, new Date(1000));
+        }
+
+        final Map<String, Boolean> results = EntityHelper.cancelScheduledMails(ds, new Date(500), USER_ID,
+                Arrays.asList("duplicate", "mail0", "mail1", "mail2", "mail3"));
+        assertEquals(5, results.size());
+        assertEquals(0, getPending().size());
+    }
+
+    private void schedule(final String mailId, final Date scheduledFor) {
+        ds.put(EntityHelper.createNewScheduledMailEntity(USER_ID, mailId, scheduledFor, ProcessingOptionSet.fromBits(0), new Date(0)));
+    }
+
+    private List<Entity> getPending() {
+        final Query q = new Query(EntityConstants.ScheduledMail.NAME)
+                .setFilter(Query.CompositeFilterOperator.and(
+                        new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.USER_ID, Query.FilterOperator.EQUAL, USER_ID),
+                        new Query.FilterPredicate(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, Query.FilterOperator.EQUAL, false)
+                ));
+        return ds.prepare(q).asList(FetchOptions.Builder.withDefaults());
+    }
+}
@@ -0,0 +1,68 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the throughput of scheduling and processing on the in-memory store, without any storage latency,
+ * with the benchmark profile: {@code mvn test -Pbenchmark}. The number of mails can be raised with the
+ * system property {@link #MAILS_PROPERTY}.
+ */
+public class InMemoryScheduleStoreBenchmark {
+
+    private static final Logger log = Logger.getLogger(InMemoryScheduleStoreBenchmark.class.getName());
+
+    private static final String MAILS_PROPERTY = "mailfred.benchmark.mails";
+    private static final int USERS = 100;
+
+    // keys need an API environment, no service is used
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+    private InMemoryScheduleStore store;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        store = new InMemoryScheduleStore();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void scheduleAndProcess() throws Exception {
+        final int mails = Integer.getInteger(MAILS_PROPERTY, 100000);
+        final ProcessingOptionSet options = ProcessingOptionSet.fromBits(0);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < mails; i++) {
+            store.schedule(new Date(0), "user" + (i % USERS), null, "mail" + i, new Date(1000 + i), options);
+        }
+        final long scheduleMillis = Math.max(1, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        int processed = 0;
+        final Date now = new Date(1000 + mails);
+        for (final Entity due : store.findDue(now)) {
+            final Entity claimed = store.claim(due.getKey(), "processor", now, new Date(now.getTime() + 1000));
+            store.recordResult(claimed, EntityConstants.ScheduledMail.Property.ProcessStatus.PROCESSED_CORRECTLY, now);
+            processed++;
+        }
+        final long processMillis = Math.max(1, System.currentTimeMillis() - start);
+
+        assertEquals(mails, processed);
+        assertEquals(0, store.getPendingCount());
+        log.info(String.format("In-memory store with %d mails of %d users: schedule %.0f mails/s, find due + claim + record %.0f mails/s",
+                mails, USERS, mails * 1000d / scheduleMillis, mails * 1000d / processMillis));
+    }
+}
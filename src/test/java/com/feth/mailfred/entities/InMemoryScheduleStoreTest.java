@@ -0,0 +1,122 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the in-memory store against the behaviour of the Datastore store.
+ * The throughput is measured by {@link InMemoryScheduleStoreBenchmark}.
+ */
+public class InMemoryScheduleStoreTest {
+
+    // keys need an API environment, no service is used
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+    private InMemoryScheduleStore store;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        store = new InMemoryScheduleStore();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void replacesPendingSchedules() throws Exception {
+        store.schedule(new Date(0), "user", null, "a", new Date(3000), ProcessingOptionSet.fromBits(0));
+        store.schedule(new Date(0), "user", null, "b", new Date(1000), ProcessingOptionSet.fromBits(0));
+        store.schedule(new Date(0), "user", null, "a", new Date(2000), ProcessingOptionSet.fromBits(0));
+        assertEquals(2, store.getPendingCount());
+        assertEquals("b", store.findPendingSchedules("user").get(0).getMailId());
+
+        assertEquals(Boolean.TRUE, store.reschedule(new Date(0), "user", Arrays.asList("b"), new Date(5000)).get("b"));
+        assertTrue(store.cancel(new Date(0), "user", Arrays.asList("a", "unknown")).containsKey("a"));
+        assertEquals(Arrays.asList("b"), toList(store.findPendingForUser("user")));
+        assertEquals(0, count(store.findDue(new Date(4000))));
+        assertEquals(1, count(store.findDue(new Date(5000))));
+    }
+
+    @Test
+    public void parksTheMailsOfRevokedUsers() throws Exception {
+        store.schedule(new Date(0), "revoked", null, "a", new Date(1000), ProcessingOptionSet.fromBits(0));
+        store.schedule(new Date(0), "healthy", null, "b", new Date(1000), ProcessingOptionSet.fromBits(0));
+        Entity parked = null;
+        for (final Entity due : store.findDue(new Date(1000))) {
+            if ("revoked".equals(due.getProperty(EntityConstants.ScheduledMail.Property.USER_ID))) {
+                parked = due;
+            }
+        }
+
+        store.markRevoked("revoked", new Exception("invalid_grant"));
+        assertTrue(store.isRevoked("revoked"));
+        assertEquals(1, count(store.findDue(new Date(1000))));
+        assertEquals(1, store.findPendingSchedules("revoked").size());
+        assertNull(store.claim(parked.getKey(), "processor", new Date(1000), new Date(2000)));
+
+        store.clearRevoked("revoked");
+        assertFalse(store.isRevoked("revoked"));
+        assertEquals(2, count(store.findDue(new Date(1000))));
+    }
+
+    @Test
+    public void claimsAndRecordsResults() throws Exception {
+        store.schedule(new Date(0), "user", null, "a", new Date(1000), ProcessingOptionSet.fromBits(0));
+        final Entity due = store.findDue(new Date(1000)).iterator().next();
+
+        final Entity claimed = store.claim(due.getKey(), "processor", new Date(1000), new Date(2000));
+        assertNotNull(claimed);
+        assertNull(store.claim(due.getKey(), "other", new Date(1500), new Date(2500)));
+
+        store.recordResult(claimed, EntityConstants.ScheduledMail.Property.ProcessStatus.PROCESSED_CORRECTLY, new Date(1500));
+        assertEquals(0, store.getPendingCount());
+        assertEquals(Long.valueOf(1), store.getStatusTotals().get(EntityConstants.ScheduledMail.Property.ProcessStatus.PROCESSED_CORRECTLY));
+    }
+
+    @Test
+    public void parkingKeepsAnActiveClaim() throws Exception {
+        store.schedule(new Date(0), "user", null, "a", new Date(1000), ProcessingOptionSet.fromBits(0));
+        final Entity due = store.findDue(new Date(1000)).iterator().next();
+        assertNotNull(store.claim(due.getKey(), "processor", new Date(1000), new Date(5000)));
+
+        store.markRevoked("user", new Exception("invalid_grant"));
+        store.clearRevoked("user");
+        final Entity unparked = store.findDue(new Date(1000)).iterator().next();
+        assertEquals("processor", unparked.getProperty(EntityConstants.ScheduledMail.Property.CLAIMED_BY));
+        assertNull(store.claim(due.getKey(), "other", new Date(2000), new Date(6000)));
+    }
+
+    private static int count(final Iterable<Entity> entities) {
+        int count = 0;
+        for (final Entity ignored : entities) {
+            count++;
+        }
+        return count;
+    }
+
+    private static List<String> toList(final Iterator<String> it) {
+        final List<String> list = new ArrayList<String>();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+}
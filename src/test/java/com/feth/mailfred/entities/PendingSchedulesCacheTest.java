@@ -0,0 +1,68 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PendingSchedulesCacheTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void updatesTheCachedList() {
+        assertEquals(0, PendingSchedulesCache.get(DatastoreServiceFactory.getDatastoreService(), "user").size());
+        PendingSchedulesCache.onScheduled("user", "b", 2000, ProcessingOptionSet.fromBits(0));
+        PendingSchedulesCache.onScheduled("user", "a", 1000, ProcessingOptionSet.fromBits(0));
+        assertEquals("a", PendingSchedulesCache.get(DatastoreServiceFactory.getDatastoreService(), "user").get(0).getMailId());
+
+        PendingSchedulesCache.onRemoved("user", "a");
+        assertEquals(1, PendingSchedulesCache.get(DatastoreServiceFactory.getDatastoreService(), "user").size());
+    }
+
+    @Test
+    public void aReadThatLoadedBeforeAnUpdateCantCacheItsList() {
+        // a read loaded the list with mail "a", which got processed before the read was done
+        final MemcacheService.IdentifiableValue marker = PendingSchedulesCache.startLoading("user");
+        final List<PendingSchedulesCache.PendingSchedule> stale = new ArrayList<PendingSchedulesCache.PendingSchedule>(
+                Collections.singletonList(new PendingSchedulesCache.PendingSchedule("a", 1000, 0)));
+        PendingSchedulesCache.onRemoved("user", "a");
+
+        assertFalse(PendingSchedulesCache.finishLoading("user", marker, stale));
+        assertEquals(0, PendingSchedulesCache.get(DatastoreServiceFactory.getDatastoreService(), "user").size());
+    }
+
+    @Test
+    public void updatesWithoutACachedListDontKeepReadsFromCaching() {
+        PendingSchedulesCache.onRemoved("user", "a");
+        PendingSchedulesCache.get(DatastoreServiceFactory.getDatastoreService(), "user");
+        PendingSchedulesCache.onRemoved("user", "b");
+
+        final MemcacheService cache = MemcacheServiceFactory.getMemcacheService(PendingSchedulesCache.MEMCACHE_NAMESPACE);
+        assertTrue(cache.get("user") instanceof List);
+    }
+}
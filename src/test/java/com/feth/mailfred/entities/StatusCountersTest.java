@@ -0,0 +1,70 @@
+package com.feth.mailfred.entities;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatusCountersTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private DatastoreService ds;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(StatusCounters.PER_USER_PROPERTY);
+        helper.tearDown();
+    }
+
+    @Test
+    public void flushesMoreCountersThanFitIntoOneTransaction() {
+        final Date day = new Date(0);
+        final StatusCounters counters = new StatusCounters();
+        final String[] statuses = EntityConstants.ScheduledMail.Property.ProcessStatus.ALL_PROCESS_STATUSES;
+        for (int i = 0; i < statuses.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                counters.increment(day, statuses[i], "user");
+            }
+        }
+        counters.flush();
+
+        final Map<String, Long> totals = StatusCounters.getTotals(ds, day, null);
+        for (int i = 0; i < statuses.length; i++) {
+            assertEquals(Long.valueOf(i + 1), totals.get(statuses[i]));
+        }
+    }
+
+    @Test
+    public void countsPerUserOnlyIfEnabled() {
+        final Date day = new Date(0);
+        final String status = EntityConstants.ScheduledMail.Property.ProcessStatus.PROCESSED_CORRECTLY;
+
+        final StatusCounters disabled = new StatusCounters();
+        disabled.increment(day, status, "user");
+        disabled.flush();
+        assertEquals(Long.valueOf(0), StatusCounters.getTotals(ds, day, "user").get(status));
+
+        System.setProperty(StatusCounters.PER_USER_PROPERTY, "true");
+        final StatusCounters enabled = new StatusCounters();
+        enabled.increment(day, status, "user");
+        enabled.flush();
+        assertEquals(Long.valueOf(1), StatusCounters.getTotals(ds, day, "user").get(status));
+        assertEquals(Long.valueOf(2), StatusCounters.getTotals(ds, day, null).get(status));
+    }
+}
@@ -0,0 +1,86 @@
+package com.feth.mailfred.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FairShareQueueTest {
+
+    @Test
+    public void interleavesOwnersInTheOrderTheyShowedUp() {
+        final FairShareQueue<String> queue = new FairShareQueue<String>(10);
+        queue.offer("big", "b1");
+        queue.offer("big", "b2");
+        queue.offer("big", "b3");
+        queue.offer("big", "b4");
+        queue.offer("small", "s1");
+        queue.offer("other", "o1");
+        queue.offer("other", "o2");
+
+        assertEquals(7, queue.size());
+        assertEquals(3, queue.getOwnerCount());
+        assertEquals(Arrays.asList("b1", "s1", "o1", "b2", "o2", "b3", "b4"), drain(queue));
+    }
+
+    @Test
+    public void defersItemsBeyondTheShareOfAnOwner() {
+        final FairShareQueue<String> queue = new FairShareQueue<String>(2);
+        assertTrue(queue.offer("big", "b1"));
+        assertTrue(queue.offer("big", "b2"));
+        assertFalse(queue.offer("big", "b3"));
+        assertFalse(queue.offer("big", "b4"));
+        assertTrue(queue.offer("small", "s1"));
+
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.getDeferredCount());
+        assertEquals(Integer.valueOf(4), queue.getQueueDepths().get("big"));
+        assertEquals(Integer.valueOf(1), queue.getQueueDepths().get("small"));
+        assertEquals(Arrays.asList("b1", "s1", "b2"), drain(queue));
+    }
+
+    @Test
+    public void handsOutEveryQueuedItemOnce() {
+        final FairShareQueue<Integer> queue = new FairShareQueue<Integer>(3);
+        for (int i = 0; i < 50; i++) {
+            queue.offer("user" + (i % 7), i);
+        }
+        final List<Integer> drained = drain(queue);
+        assertEquals(queue.size(), drained.size());
+        assertEquals(50 - queue.size(), queue.getDeferredCount());
+        // the first round holds one item of each owner
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), drained.subList(0, 7));
+    }
+
+    @Test
+    public void emptyQueueHandsOutNothing() {
+        final Iterator<String> it = new FairShareQueue<String>(1).iterator();
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail();
+        } catch (final NoSuchElementException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyShare() {
+        new FairShareQueue<String>(0);
+    }
+
+    private static <T> List<T> drain(final FairShareQueue<T> queue) {
+        final List<T> items = new ArrayList<T>();
+        for (final T item : queue) {
+            items.add(item);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,119 @@
+package com.feth.mailfred.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the wheel with a plain map of due times under random schedules, cancels and advances
+ */
+public class TimingWheelTest {
+
+    private static final long TICK_MILLIS = 1000;
+
+    @Test
+    public void firesItemsAtTheirDueTick() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(TICK_MILLIS, 4, 2, 0);
+        wheel.schedule("a", 2500);
+        wheel.schedule("b", 1000);
+        wheel.schedule("c", 100000);
+
+        assertTrue(wheel.advance(500).isEmpty());
+        assertEquals(list("b"), wheel.advance(1999));
+        assertEquals(list("a"), wheel.advance(2000));
+        assertTrue(wheel.advance(99999).isEmpty());
+        assertEquals(list("c"), wheel.advance(100000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void handsOutOverdueItemsOnTheNextAdvance() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(TICK_MILLIS, 4, 2, 10000);
+        wheel.schedule("overdue", 0);
+        assertTrue(wheel.contains("overdue"));
+        assertEquals(list("overdue"), wheel.advance(10000));
+    }
+
+    @Test
+    public void reschedulesAndCancels() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(TICK_MILLIS, 4, 2, 0);
+        wheel.schedule("a", 5000);
+        wheel.schedule("a", 2000);
+        wheel.schedule("b", 3000);
+        assertEquals(2, wheel.size());
+        assertTrue(wheel.cancel("b"));
+        assertFalse(wheel.cancel("b"));
+        assertEquals(list("a"), wheel.advance(6000));
+    }
+
+    @Test
+    public void behavesLikeASortedMap() {
+        final Random random = new Random(42);
+        for (int run = 0; run < 20; run++) {
+            final int slots = 2 + random.nextInt(8);
+            final int levels = 1 + random.nextInt(3);
+            final long start = random.nextInt(1000000);
+            final TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK_MILLIS, slots, levels, start);
+            // beyond the highest level, so the overflow list is covered as well
+            final long horizon = TICK_MILLIS * (long) Math.pow(slots, levels + 1);
+            final Map<Integer, Long> model = new HashMap<Integer, Long>();
+            long now = start;
+
+            for (int step = 0; step < 5000; step++) {
+                final int operation = random.nextInt(10);
+                final Integer item = random.nextInt(200);
+                if (operation < 5) {
+                    final long due = now - TICK_MILLIS + (long) (random.nextDouble() * horizon);
+                    wheel.schedule(item, due);
+                    model.put(item, due);
+                } else if (operation < 7) {
+                    assertEquals(model.remove(item) != null, wheel.cancel(item));
+                } else {
+                    final long previousTick = now / TICK_MILLIS;
+                    now += (long) (random.nextDouble() * TICK_MILLIS * slots);
+                    final List<Integer> fired = wheel.advance(now);
+
+                    final Map<Integer, Long> expected = new HashMap<Integer, Long>();
+                    for (final Iterator<Map.Entry<Integer, Long>> it = model.entrySet().iterator(); it.hasNext(); ) {
+                        final Map.Entry<Integer, Long> entry = it.next();
+                        if (entry.getValue() / TICK_MILLIS <= now / TICK_MILLIS) {
+                            expected.put(entry.getKey(), entry.getValue());
+                            it.remove();
+                        }
+                    }
+                    assertEquals(expected.keySet(), new HashSet<Integer>(fired));
+                    assertEquals(expected.size(), fired.size());
+
+                    // items that became due while advancing come in the order of their due tick
+                    long lastTick = previousTick;
+                    for (final Integer firedItem : fired) {
+                        final long dueTick = expected.get(firedItem) / TICK_MILLIS;
+                        if (dueTick > previousTick) {
+                            assertTrue(dueTick >= lastTick);
+                            lastTick = dueTick;
+                        }
+                    }
+                }
+                assertEquals(model.size(), wheel.size());
+            }
+        }
+    }
+
+    private static List<String> list(final String... items) {
+        final List<String> list = new ArrayList<String>();
+        for (final String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+}
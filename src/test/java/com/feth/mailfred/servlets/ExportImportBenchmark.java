@@ -0,0 +1,63 @@
+package com.feth.mailfred.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the throughput of the export and the import against the local Datastore, with the benchmark profile:
+ * {@code mvn test -Pbenchmark}. The number of entities can be raised with the system property
+ * {@link #ENTITIES_PROPERTY}, e.g. to 1000000 (which needs a larger heap, the local Datastore keeps everything in memory).
+ */
+public class ExportImportBenchmark {
+
+    private static final Logger log = Logger.getLogger(ExportImportBenchmark.class.getName());
+
+    private static final String ENTITIES_PROPERTY = "mailfred.benchmark.entities";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setNoStorage(true));
+
+    private DatastoreService ds;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void exportAndImport() throws Exception {
+        final int count = Integer.getInteger(ENTITIES_PROPERTY, 20000);
+        ExportImportServletTest.putScheduledMails(ds, count, "mail");
+
+        long start = System.currentTimeMillis();
+        final List<String> lines = ExportImportServletTest.exportAll();
+        final long exportMillis = Math.max(1, System.currentTimeMillis() - start);
+        assertEquals(count, lines.size());
+
+        ExportImportServletTest.deleteAll(ds);
+        start = System.currentTimeMillis();
+        final JSONObject result = ExportImportServletTest.importLines(lines);
+        final long importMillis = Math.max(1, System.currentTimeMillis() - start);
+        assertEquals(count, result.getLong("imported"));
+
+        log.info(String.format("Export/import of %d entities on the local Datastore: export %.0f entities/s, import %.0f entities/s",
+                count, count * 1000d / exportMillis, count * 1000d / importMillis));
+    }
+}
@@ -0,0 +1,213 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.entities.EntityConstants;
+import com.feth.mailfred.entities.ScheduledMailJson;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through the export and the import against the local Datastore.
+ * The throughput is measured by {@link ExportImportBenchmark}.
+ */
+public class ExportImportServletTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setNoStorage(true));
+
+    private DatastoreService ds;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void importRestoresTheExportedEntities() throws Exception {
+        putScheduledMails(ds, 200, "mail");
+        final Map<Key, Entity> exported = new HashMap<Key, Entity>();
+        for (final Entity entity : ds.prepare(new Query(EntityConstants.ScheduledMail.NAME)).asIterable()) {
+            exported.put(entity.getKey(), entity);
+        }
+
+        final List<String> lines = exportAll();
+        deleteAll(ds);
+        final JSONObject result = importLines(lines);
+        assertTrue(result.getBoolean("success"));
+        assertEquals(200, result.getLong("imported"));
+
+        final Map<Key, Entity> imported = ds.get(exported.keySet());
+        assertEquals(exported.size(), imported.size());
+        for (final Entity entity : exported.values()) {
+            assertEquals(entity.getProperties(), imported.get(entity.getKey()).getProperties());
+        }
+    }
+
+    @Test
+    public void newMailsDontGetTheKeptIds() throws Exception {
+        putScheduledMails(ds, 200, "mail");
+        final List<String> lines = exportAll();
+        // a fresh Datastore, like the one of another app
+        helper.tearDown();
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+
+        assertTrue(importLines(lines).getBoolean("success"));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ds.put(new Entity(EntityConstants.ScheduledMail.NAME)).getId() > 200);
+        }
+        assertEquals(210, ds.prepare(new Query(EntityConstants.ScheduledMail.NAME)).countEntities(FetchOptions.Builder.withDefaults()));
+    }
+
+    @Test
+    public void continuesAtTheCursor() throws Exception {
+        putScheduledMails(ds, 10, "mail");
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(ExportServlet.PARAMETER_LIMIT, "7");
+
+        final List<String> lines = new ArrayList<String>();
+        final String cursor = export(new ExportServlet(), parameters, lines);
+        assertEquals(7, lines.size());
+
+        parameters.put(ExportServlet.PARAMETER_CURSOR, cursor);
+        assertEquals(null, export(new ExportServlet(), parameters, lines));
+        assertEquals(10, lines.size());
+    }
+
+    @Test
+    public void staysBelowTheResponseLimit() throws Exception {
+        final int maxResponseBytes = 64 * 1024;
+        // with mail IDs this long, the mails take about five responses
+        putScheduledMails(ds, 600, Strings.repeat("m", 450));
+
+        final ExportServlet servlet = new ExportServlet(maxResponseBytes);
+        final List<String> lines = new ArrayList<String>();
+        final Map<String, String> parameters = new HashMap<String, String>();
+        int responses = 0;
+        String cursor;
+        do {
+            final ServletStubs.Response response = new ServletStubs.Response();
+            servlet.doGet(ServletStubs.request(parameters, null), ServletStubs.response(response));
+            // the line that reaches the limit and the cursor record still go into the response
+            assertTrue(response.getBody().getBytes(Charsets.UTF_8).length < maxResponseBytes + 2 * 1024);
+            cursor = parse(response.getBody(), lines);
+            parameters.put(ExportServlet.PARAMETER_CURSOR, cursor);
+            responses++;
+        } while (cursor != null);
+
+        assertTrue(responses > 1);
+        assertEquals(600, lines.size());
+    }
+
+    /**
+     * Puts pending and processed mails of 100 users
+     */
+    static void putScheduledMails(final DatastoreService ds, final int count, final String mailIdPrefix) {
+        final List<Entity> batch = new ArrayList<Entity>();
+        for (int i = 1; i <= count; i++) {
+            final boolean processed = i % 3 == 0;
+            final JSONObject json = new JSONObject();
+            json.put(ScheduledMailJson.FIELD_ID, i);
+            json.put(EntityConstants.ScheduledMail.Property.USER_ID, "user" + (i % 100));
+            json.put(EntityConstants.ScheduledMail.Property.MAIL_ID, mailIdPrefix + i);
+            json.put(EntityConstants.ScheduledMail.Property.SCHEDULED_AT, 1000L);
+            json.put(EntityConstants.ScheduledMail.Property.SCHEDULED_FOR, 2000L + i);
+            json.put(EntityConstants.ScheduledMail.Property.PROCESSED_AT, processed ? 3000L + i : JSONObject.NULL);
+            json.put(EntityConstants.ScheduledMail.Property.HAS_BEEN_PROCESSED, processed);
+            json.put(EntityConstants.ScheduledMail.Property.PROCESS_STATUS, processed
+                    ? EntityConstants.ScheduledMail.Property.ProcessStatus.PROCESSED_CORRECTLY : JSONObject.NULL);
+            json.put(ScheduledMailJson.FIELD_OPTIONS, (long) (i % 32));
+            batch.add(ScheduledMailJson.fromJson(json, true));
+            if (batch.size() == 500) {
+                ds.put(batch);
+                batch.clear();
+            }
+        }
+        ds.put(batch);
+    }
+
+    static void deleteAll(final DatastoreService ds) {
+        final List<Key> keys = new ArrayList<Key>();
+        for (final Entity entity : ds.prepare(new Query(EntityConstants.ScheduledMail.NAME).setKeysOnly()).asIterable()) {
+            keys.add(entity.getKey());
+        }
+        ds.delete(keys);
+    }
+
+    /**
+     * @return the lines of all mails, following the cursors
+     */
+    static List<String> exportAll() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        final Map<String, String> parameters = new HashMap<String, String>();
+        String cursor;
+        do {
+            cursor = export(new ExportServlet(), parameters, lines);
+            parameters.put(ExportServlet.PARAMETER_CURSOR, cursor);
+        } while (cursor != null);
+        return lines;
+    }
+
+    static JSONObject importLines(final List<String> lines) throws Exception {
+        final StringBuilder body = new StringBuilder();
+        for (final String line : lines) {
+            body.append(line).append('\n');
+        }
+        final ServletStubs.Response response = new ServletStubs.Response();
+        new ImportServlet().doPost(ServletStubs.request(Collections.<String, String>emptyMap(), body.toString()), ServletStubs.response(response));
+        return new JSONObject(response.getBody());
+    }
+
+    /**
+     * @return the cursor to continue with, null if the export is complete
+     */
+    private static String export(final ExportServlet servlet, final Map<String, String> parameters, final List<String> lines) throws Exception {
+        final ServletStubs.Response response = new ServletStubs.Response();
+        servlet.doGet(ServletStubs.request(parameters, null), ServletStubs.response(response));
+        assertEquals(200, response.getStatus());
+        return parse(response.getBody(), lines);
+    }
+
+    private static String parse(final String body, final List<String> lines) {
+        String cursor = null;
+        for (final String line : body.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final JSONObject json = new JSONObject(line);
+            if (json.has(ExportServlet.FIELD_CURSOR)) {
+                cursor = json.getString(ExportServlet.FIELD_CURSOR);
+            } else {
+                lines.add(line);
+            }
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,66 @@
+package com.feth.mailfred.servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Minimal requests and responses for calling servlets directly, built as dynamic proxies:
+ * everything the servlets under test don't use returns null
+ */
+final class ServletStubs {
+
+    static class Response {
+        private final StringWriter body = new StringWriter();
+        private int status = HttpServletResponse.SC_OK;
+
+        int getStatus() {
+            return status;
+        }
+
+        String getBody() {
+            return body.toString();
+        }
+    }
+
+    private ServletStubs() {
+    }
+
+    static HttpServletRequest request(final Map<String, String> parameters, final String body) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getParameter".equals(method.getName())) {
+                    return parameters.get((String) args[0]);
+                }
+                if ("getReader".equals(method.getName())) {
+                    return new BufferedReader(new StringReader(body == null ? "" : body));
+                }
+                return null;
+            }
+        });
+    }
+
+    static HttpServletResponse response(final Response response) {
+        final PrintWriter writer = new PrintWriter(response.body);
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getWriter".equals(method.getName())) {
+                    return writer;
+                }
+                if ("setStatus".equals(method.getName()) || "sendError".equals(method.getName())) {
+                    response.status = (Integer) args[0];
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,106 @@
+package com.feth.mailfred.servlets;
+
+import com.feth.mailfred.util.Utils;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.ModifyMessageRequest;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the first request of a cold instance with the first request after {@link WarmupServlet} ran.
+ * <p/>
+ * Every sample runs in a fresh JVM, so classes and caches are really cold. A "request" is everything
+ * the schedule request does before it talks to Gmail: the auth health check, loading the credential,
+ * building the Gmail client and a modify request and parsing a response.
+ * <p/>
+ * Starts a few JVMs, so it only runs with the benchmark profile: {@code mvn test -Pbenchmark}
+ */
+public class WarmupLatencyBenchmark {
+
+    private static final Logger log = Logger.getLogger(WarmupLatencyBenchmark.class.getName());
+
+    private static final int SAMPLES = 3;
+    private static final String RESULT_PREFIX = "firstRequestMillis=";
+
+    @Test
+    public void warmupMovesTheInitializationOutOfTheFirstRequest() throws Exception {
+        final long cold = median(runProbe("cold"));
+        final long warm = median(runProbe("warm"));
+        log.info(String.format("Warmup latency: first request %d ms cold, %d ms after warmup (median of %d JVMs)", cold, warm, SAMPLES));
+        assertTrue(String.format("The first request took %d ms after warmup and %d ms without", warm, cold), warm < cold);
+    }
+
+    private static List<Long> runProbe(final String mode) throws Exception {
+        final List<Long> results = new ArrayList<Long>(SAMPLES);
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int i = 0; i < SAMPLES; i++) {
+            final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Probe.class.getName(), mode)
+                    .redirectErrorStream(true)
+                    .start();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            Long millis = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    millis = Long.parseLong(line.substring(RESULT_PREFIX.length()));
+                }
+            }
+            assertEquals(0, process.waitFor());
+            assertTrue("The probe didn't report a result", millis != null);
+            results.add(millis);
+        }
+        return results;
+    }
+
+    private static long median(final List<Long> values) {
+        final List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    public static class Probe {
+
+        public static void main(final String[] args) throws Exception {
+            final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+            helper.setUp();
+            try {
+                if ("warm".equals(args[0])) {
+                    new WarmupServlet().doGet(null, null);
+                }
+                final long start = System.currentTimeMillis();
+                firstRequest();
+                // the parent reads the result from the output of this JVM
+                System.out.println(RESULT_PREFIX + (System.currentTimeMillis() - start));
+            } finally {
+                helper.tearDown();
+            }
+        }
+
+        private static void firstRequest() throws Exception {
+            final String userId = "probe";
+            Utils.getScheduleStore().isRevoked(userId);
+            final Gmail gmail = Utils.loadGmailClient(userId);
+            gmail.users().messages().modify("me", "0000000000000001",
+                    new ModifyMessageRequest().setAddLabelIds(Arrays.asList("Label_1", "Label_2")))
+                    .setQuotaUser(userId)
+                    .buildHttpRequest();
+            Utils.getJsonFactory().fromString("{\"id\":\"0000000000000001\",\"threadId\":\"0000000000000001\",\"labelIds\":[\"INBOX\",\"Label_1\"]}", Message.class);
+        }
+    }
+}
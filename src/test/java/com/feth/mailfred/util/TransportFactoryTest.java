@@ -0,0 +1,232 @@
+package com.feth.mailfred.util;
+
+import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransportFactoryTest {
+
+    private static final GenericUrl URL = new GenericUrl("https://www.googleapis.com/gmail/v1/users/me/messages/1");
+    private static final int LIMIT = 1024;
+
+    private final Logger logger = Logger.getLogger(TransportFactory.class.getName());
+    private final List<LogRecord> records = new ArrayList<LogRecord>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(final LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+    private Level previousLevel;
+
+    @Before
+    public void setUp() {
+        previousLevel = logger.getLevel();
+        logger.setLevel(Level.FINE);
+        logger.addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeHandler(handler);
+        logger.setLevel(previousLevel);
+    }
+
+    @Test
+    public void appliesTheDeadlineOfTheMethod() throws IOException {
+        final int[] timeouts = new int[2];
+        final TransportFactory factory = new TransportFactory.Builder(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public void setTimeout(final int connectTimeout, final int readTimeout) throws IOException {
+                        timeouts[0] = connectTimeout;
+                        timeouts[1] = readTimeout;
+                    }
+                };
+            }
+        })
+                .setDeadline(HttpMethods.POST, new TransportFactory.Deadline(1000, 2000))
+                .setDefaultDeadline(new TransportFactory.Deadline(3000, 4000))
+                .build();
+
+        execute(factory, HttpMethods.POST);
+        assertEquals(Arrays.asList(1000, 2000), Arrays.asList(timeouts[0], timeouts[1]));
+
+        execute(factory, HttpMethods.GET);
+        assertEquals(Arrays.asList(3000, 4000), Arrays.asList(timeouts[0], timeouts[1]));
+    }
+
+    @Test
+    public void rejectsResponsesWithALargerContentLength() throws IOException {
+        final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                .setContent(new byte[LIMIT + 1]);
+        try {
+            execute(factory(response), HttpMethods.GET);
+            fail("The response exceeds the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds the limit"));
+        }
+        assertTrue(response.isDisconnected());
+    }
+
+    @Test
+    public void rejectsChunkedResponsesWhileReading() throws IOException {
+        final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                .setContent(new byte[LIMIT + 1])
+                .setContentLength(-1);
+        final HttpResponse httpResponse = execute(factory(response), HttpMethods.GET);
+        try {
+            httpResponse.parseAsString();
+            fail("The response exceeds the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds the limit"));
+        }
+        assertTrue(response.isDisconnected());
+        assertTrue(hasRecord("failed after reading"));
+    }
+
+    @Test
+    public void countsCompressedBytes() throws IOException {
+        // repetitive text compresses well below the limit, so it passes although it is larger once decompressed
+        final byte[] text = new byte[LIMIT * 4];
+        Arrays.fill(text, (byte) 'a');
+        final MockLowLevelHttpResponse small = new MockLowLevelHttpResponse()
+                .setContent(gzip(text))
+                .setContentEncoding("gzip")
+                .setContentLength(-1);
+        assertEquals(text.length, execute(factory(small), HttpMethods.GET).parseAsString().length());
+        assertTrue(hasRecord(String.format("status 200, %d bytes (gzip)", gzip(text).length)));
+
+        final byte[] random = new byte[LIMIT * 4];
+        new java.util.Random(42).nextBytes(random);
+        final MockLowLevelHttpResponse large = new MockLowLevelHttpResponse()
+                .setContent(gzip(random))
+                .setContentEncoding("gzip")
+                .setContentLength(-1);
+        try {
+            execute(factory(large), HttpMethods.GET).parseAsString();
+            fail("The compressed response exceeds the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds the limit"));
+        }
+    }
+
+    @Test
+    public void logsSuccessfulAndFailedCalls() throws IOException {
+        final HttpResponse response = execute(factory(new MockLowLevelHttpResponse().setContent("{}")), HttpMethods.GET);
+        // logged once the content is consumed, when the bytes are known
+        assertFalse(hasRecord("GET /gmail/v1/users/me/messages/1: status 200"));
+        assertEquals("{}", response.parseAsString());
+        assertTrue(hasRecord("GET /gmail/v1/users/me/messages/1: status 200, 2 bytes (identity)"));
+
+        final TransportFactory timingOut = new TransportFactory.Builder(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                };
+            }
+        }).build();
+        try {
+            execute(timingOut, HttpMethods.POST);
+            fail("The call times out");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertTrue(hasRecord("POST /gmail/v1/users/me/messages/1: failed after"));
+    }
+
+    @Test
+    public void tokenRequestsUseTheTransportOfTheFactory() throws IOException {
+        final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+        helper.setUp();
+        final TransportFactory previous = Utils.getTransportFactory();
+        try {
+            final TransportFactory factory = factory(new MockLowLevelHttpResponse());
+            Utils.setTransportFactory(factory);
+            final AuthorizationCodeFlow flow = Utils.newFlow("user");
+            assertSame(factory.getTransport(), flow.getTransport());
+
+            final HttpRequest request = flow.getTransport().createRequestFactory(flow.getRequestInitializer())
+                    .buildPostRequest(URL, null);
+            assertEquals("gzip", request.getHeaders().getAcceptEncoding());
+        } finally {
+            Utils.setTransportFactory(previous);
+            helper.tearDown();
+        }
+    }
+
+    private static TransportFactory factory(final MockLowLevelHttpResponse response) {
+        return new TransportFactory.Builder(new MockHttpTransport.Builder().setLowLevelHttpResponse(response).build())
+                .setMaxResponseBytes(LIMIT)
+                .build();
+    }
+
+    private static HttpResponse execute(final TransportFactory factory, final String method) throws IOException {
+        return factory.getTransport().createRequestFactory(factory.wrap(null))
+                .buildRequest(method, URL, null)
+                .execute();
+    }
+
+    private static byte[] gzip(final byte[] content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(content);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private boolean hasRecord(final String message) {
+        for (final LogRecord record : records) {
+            if (record.getLevel() == Level.FINE && record.getMessage().contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}